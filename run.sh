@@ -22,6 +22,7 @@ while [ "$#" -gt 0 ] ; do
 done
 
 mpileup=$outpref.mpileup
+counts=$outpref.counts
 allelefreqcalls=$outpref.samtools.vcf
 filelist=$outpref.filelist.txt
 
@@ -33,7 +34,7 @@ filelist=$outpref.filelist.txt
 
 # Run samtools-based variant calling
 javac $BINDIR/src/*.java
-java -cp $BINDIR/src CallVariants pileup_file=$mpileup out_file=$allelefreqcalls alt_threshold=$samtools_snp_threshold indel_threshold=$samtools_indel_threshold 
+java -cp $BINDIR/src CallVariants pileup_file=$mpileup out_file=$allelefreqcalls counts_file=$counts alt_threshold=$samtools_snp_threshold indel_threshold=$samtools_indel_threshold 
 
 # Print out vcf filenames with absolute paths to filelist
 vcfarray=$(echo $vcfs | tr "," "\n")
@@ -53,17 +54,10 @@ readlink -f $allelefreqcalls >> $filelist
 # Run merging
 java -cp $BINDIR/src MergeVariants illumina_bam=None file_list=$filelist out_file=$outpref.all_callers.combined.noallelefreqs.vcf
 
-java -cp $BINDIR/src AddAlleleFrequencies vcf_file=$outpref.all_callers.combined.noallelefreqs.vcf  ont_mpileup=$mpileup out_file=$outpref.all_callers.combined.vcf
+java -cp $BINDIR/src AddAlleleFrequencies vcf_file=$outpref.all_callers.combined.noallelefreqs.vcf  ont_mpileup=$counts out_file=$outpref.all_callers.combined.vcf
 
-# Print possible false positives
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=10;' > $outpref.check.txt
-# Print possible false negatives
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=01;' >> $outpref.check.txt
+# Print possible false positives and false negatives
+#java -cp $BINDIR/src QuerySupport vcf_file=$outpref.merged.vcf pattern=10,01 out_file=$outpref.check.vcf
 
 # Print inconsistent variants when there are 3 samples
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=110;' >> $outpref.check.txt
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=101;' >> $outpref.check.txt
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=100;' >> $outpref.check.txt
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=011;' >> $outpref.check.txt
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=010;' >> $outpref.check.txt
-#cat $outpref.merged.vcf | grep 'SUPP_VEC=001;' >> $outpref.check.txt
+#java -cp $BINDIR/src QuerySupport vcf_file=$outpref.merged.vcf pattern=110,101,100,011,010,001 out_file=$outpref.check.vcf
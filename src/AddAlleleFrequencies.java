@@ -1,6 +1,4 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Scanner;
 
@@ -21,6 +19,11 @@ public class AddAlleleFrequencies {
 	// Max genome length allowed
 	static int maxLen = 31000;
 	
+	// BED file of the regions to keep variants in, or empty to keep them all
+	static String regionsFn = "";
+	
+	static Regions regions = null;
+	
 	static void usage()
 	{
 		System.out.println("Usage: java -cp src AddAlleleFrequencies [args]");
@@ -28,11 +31,12 @@ public class AddAlleleFrequencies {
 		System.out.println();
 		System.out.println("Required args:");
 		System.out.println("  vcf_file         (String) - a VCF file with the merged variants");
-		System.out.println("  ont_mpileup      (String) - mpileup from the Oxford Nanopore read alignments");
+		System.out.println("  ont_mpileup      (String) - mpileup from the Oxford Nanopore read alignments, or the counts_file saved by CallVariants");
 		System.out.println("  out_file         (String) - file to write updated variants to");
 		System.out.println();
 		System.out.println("Optional args:");
-		System.out.println("  illumina_mpileup (String) - mpileup from the Illumina read alignments");
+		System.out.println("  illumina_mpileup (String) - mpileup from the Illumina read alignments, or the counts_file saved by CallVariants");
+		System.out.println("  regions          (String) - a BED file of regions, so only variants inside them are output and only those parts of the mpileups are read");
 		System.out.println();
 	}
 	
@@ -53,6 +57,7 @@ public class AddAlleleFrequencies {
 				else if(key.equalsIgnoreCase("illumina_mpileup")) { illuminaMpileupFn = val; } 
 				else if(key.equalsIgnoreCase("ont_mpileup")) { ontMpileupFn = val; }
 				else if(key.equalsIgnoreCase("out_file")) { ofn = val; } 
+				else if(key.equalsIgnoreCase("regions")) { regionsFn = val; }
 
 			}
 		}
@@ -68,6 +73,11 @@ public class AddAlleleFrequencies {
 	{
 		parseArgs(args);
 		
+		if(regionsFn.length() > 0)
+		{
+			regions = new Regions(regionsFn);
+		}
+		
 		Mpileup ontMpileup = null;
 
         if(ontMpileupFn.length() > 0)
@@ -82,8 +92,8 @@ public class AddAlleleFrequencies {
 			illuminaMpileup = new Mpileup(illuminaMpileupFn);
 		}
 				
-		Scanner input = new Scanner(new FileInputStream(new File(vcfFn)));
-		PrintWriter out = new PrintWriter(new File(ofn));
+		Scanner input = new Scanner(CompressedFiles.open(vcfFn));
+		VcfWriter out = new VcfWriter(ofn);
 		
 		while(input.hasNext())
 		{
@@ -99,6 +109,11 @@ public class AddAlleleFrequencies {
 			}
 			VcfEntry entry = new VcfEntry(line);
 			
+			if(regions != null && !regions.contains(entry.getChromosome(), entry.getPos()))
+			{
+				continue;
+			}
+			
 			if(illuminaMpileup == null)
 			{
 				addInfoFieldsSingle(entry, ontMpileup, false);
@@ -111,7 +126,7 @@ public class AddAlleleFrequencies {
 			{
 				addInfoFields(entry, illuminaMpileup, ontMpileup);
 			}
-			out.println(entry);
+			out.println(entry.toString());
 		}
 		
 		input.close();
@@ -144,8 +159,8 @@ public class AddAlleleFrequencies {
 			return;
 		}
 		
-		// Get the mpileup data for this specific position
-		int[][] ontCovArray = ontMpileup.allFrequencies.get(chrName)[position];
+		// Get the mpileup data for this contig
+		AlleleCounts ontCovArray = ontMpileup.allFrequencies.get(chrName);
 		
 		String ref = entry.getRef();
 		String alt = entry.getAlt();
@@ -157,44 +172,21 @@ public class AddAlleleFrequencies {
 			int altVal = CallVariants.charToInt(alt.charAt(0));
 			
 			// Add up total depths for each technology and strand
-			int[] ontTotals = new int[ontCovArray.length];
-			
-			// Compute ONT depths
-			for(int i = 0; i<ontCovArray.length; i++)
-			{
-				for(int x : ontCovArray[i])
-				{
-					ontTotals[i] += x;
-				}
-				ontTotals[i] -= ontCovArray[i][5];
-			}
+			int[] ontTotals = getTotals(ontCovArray, position);
 			
 			// ONT alt allele frequency - handle case with zero depth
-			double ontAfValue = 0;
-			if(ontTotals[0] != 0)
-			{
-				ontAfValue = 1.0 * ontCovArray[0][altVal] / ontTotals[0]; 
-			}
+			String ontAf = frequency(ontCovArray.get(position, 0, altVal), ontTotals[0]);
 			
 			// Set ONT alt allele frequency INFO field
-			String ontAf = String.format("%.6f", ontAfValue);
 			entry.setInfo(illumina ? "ILLUMINA_AF" : "AF", ontAf);
 			
 			// Set ONT strand bias INFO field
-			String ontStrandBias = String.format("%d,%d,%d,%d", 
-					ontCovArray[1][altVal], ontTotals[1], 
-					ontCovArray[2][altVal], ontTotals[2]);
+			String ontStrandBias = strandCounts(ontCovArray, position, altVal, ontTotals);
 			entry.setInfo(illumina ? "ILLUMINA_STRANDAF" : "STRANDAF", ontStrandBias);
 			
 			// Set fields for all alleles on each strand of ONT
-			entry.setInfo(illumina ? "ILLUMINA_POSITIVE_STRAND_FREQUENCIES" : "POSITIVE_STRAND_FREQUENCIES", String.format("%d,%d,%d,%d,%d,%d",
-					ontCovArray[1][0], ontCovArray[1][1], 
-					ontCovArray[1][2], ontCovArray[1][3], 
-					ontCovArray[1][4], ontCovArray[1][5]));
-			entry.setInfo(illumina ? "ILLUMINA_NEGATIVE_STRAND_FREQUENCIES" : "NEGATIVE_STRAND_FREQUENCIES", String.format("%d,%d,%d,%d,%d,%d",
-					ontCovArray[2][0], ontCovArray[2][1], 
-					ontCovArray[2][2], ontCovArray[2][3], 
-					ontCovArray[2][4], ontCovArray[2][5]));
+			entry.setInfo(illumina ? "ILLUMINA_POSITIVE_STRAND_FREQUENCIES" : "POSITIVE_STRAND_FREQUENCIES", alleleCounts(ontCovArray, position, 1));
+			entry.setInfo(illumina ? "ILLUMINA_NEGATIVE_STRAND_FREQUENCIES" : "NEGATIVE_STRAND_FREQUENCIES", alleleCounts(ontCovArray, position, 2));
 			
 		}
 		
@@ -242,18 +234,18 @@ public class AddAlleleFrequencies {
 		}
 		else if(!inIllumina)
 		{
-			int[][][] ontData = ontMpileup.allFrequencies.get(chrName);
-			illuminaMpileup.allFrequencies.put(chrName, new int[ontData.length][ontData[0].length][ontData[0][0].length]);
+			AlleleCounts ontData = ontMpileup.allFrequencies.get(chrName);
+			illuminaMpileup.allFrequencies.put(chrName, new AlleleCounts(ontData.length));
 		}
 		else if(!inOnt)
 		{
-			int[][][] illuminaData = illuminaMpileup.allFrequencies.get(chrName);
-			ontMpileup.allFrequencies.put(chrName, new int[illuminaData.length][illuminaData[0].length][illuminaData[0][0].length]);
+			AlleleCounts illuminaData = illuminaMpileup.allFrequencies.get(chrName);
+			ontMpileup.allFrequencies.put(chrName, new AlleleCounts(illuminaData.length));
 		}
 		
-		// Get the mpileup data for this specific position
-		int[][] illuminaCovArray = illuminaMpileup.allFrequencies.get(chrName)[position];
-		int[][] ontCovArray = ontMpileup.allFrequencies.get(chrName)[position];
+		// Get the mpileup data for this contig
+		AlleleCounts illuminaCovArray = illuminaMpileup.allFrequencies.get(chrName);
+		AlleleCounts ontCovArray = ontMpileup.allFrequencies.get(chrName);
 		
 		String ref = entry.getRef();
 		String alt = entry.getAlt();
@@ -265,82 +257,36 @@ public class AddAlleleFrequencies {
 			int altVal = CallVariants.charToInt(alt.charAt(0));
 			
 			// Add up total depths for each technology and strand
-			int[] illuminaTotals = new int[illuminaCovArray.length];
-			int[] ontTotals = new int[ontCovArray.length];
-			
-			// Compute ONT depths
-			for(int i = 0; i<ontCovArray.length; i++)
-			{
-				for(int x : ontCovArray[i])
-				{
-					ontTotals[i] += x;
-				}
-				ontTotals[i] -= ontCovArray[i][5];
-			}
-			
-			// Compute Illumina depths
-			for(int i = 0; i<illuminaCovArray.length; i++)
-			{
-				for(int x : illuminaCovArray[i])
-				{
-					illuminaTotals[i] += x;
-				}
-				illuminaTotals[i] -= illuminaCovArray[i][5];
-			}
+			int[] illuminaTotals = getTotals(illuminaCovArray, position);
+			int[] ontTotals = getTotals(ontCovArray, position);
 			
 			// ONT alt allele frequency - handle case with zero depth
-			double ontAfValue = 0;
-			if(ontTotals[0] != 0)
-			{
-				ontAfValue = 1.0 * ontCovArray[0][altVal] / ontTotals[0]; 
-			}
+			String ontAf = frequency(ontCovArray.get(position, 0, altVal), ontTotals[0]);
 			
 			// Set ONT alt allele frequency INFO field
-			String ontAf = String.format("%.6f", ontAfValue);
 			entry.setInfo("AF", ontAf);
 			
 			// Set ONT strand bias INFO field
-			String ontStrandBias = String.format("%d,%d,%d,%d", 
-					ontCovArray[1][altVal], ontTotals[1], 
-					ontCovArray[2][altVal], ontTotals[2]);
+			String ontStrandBias = strandCounts(ontCovArray, position, altVal, ontTotals);
 			entry.setInfo("STRANDAF", ontStrandBias);
 			
 			// Illumina alt allele frequency - handle case with zero depth
-			double illuminaAfValue = 0;
-			if(illuminaTotals[0] != 0)
-			{
-				illuminaAfValue = 1.0 * illuminaCovArray[0][altVal] / illuminaTotals[0];
-			}
+			String illuminaAf = frequency(illuminaCovArray.get(position, 0, altVal), illuminaTotals[0]);
 			
 			// Set Illumina alt allele frequency INFO field
-			String illuminaAf = String.format("%.6f", illuminaAfValue);
 			entry.setInfo("ILLUMINA_AF", illuminaAf);
 			
 			// Set Illumina strand bias INFO field
-			String illuminaStrandBias = String.format("%d,%d,%d,%d", 
-					illuminaCovArray[1][altVal], illuminaTotals[1], 
-					illuminaCovArray[2][altVal], illuminaTotals[2]);
+			String illuminaStrandBias = strandCounts(illuminaCovArray, position, altVal, illuminaTotals);
 			entry.setInfo("ILLUMINA_STRANDAF", illuminaStrandBias);
 			
 			// Set fields for all alleles on each strand of ONT
-			entry.setInfo("POSITIVE_STRAND_FREQUENCIES", String.format("%d,%d,%d,%d,%d,%d",
-					ontCovArray[1][0], ontCovArray[1][1], 
-					ontCovArray[1][2], ontCovArray[1][3], 
-					ontCovArray[1][4], ontCovArray[1][5]));
-			entry.setInfo("NEGATIVE_STRAND_FREQUENCIES", String.format("%d,%d,%d,%d,%d,%d",
-					ontCovArray[2][0], ontCovArray[2][1], 
-					ontCovArray[2][2], ontCovArray[2][3], 
-					ontCovArray[2][4], ontCovArray[2][5]));
+			entry.setInfo("POSITIVE_STRAND_FREQUENCIES", alleleCounts(ontCovArray, position, 1));
+			entry.setInfo("NEGATIVE_STRAND_FREQUENCIES", alleleCounts(ontCovArray, position, 2));
 			
 			// Set fields for all alleles on each strand of Illumina
-			entry.setInfo("ILLUMINA_POSITIVE_STRAND_FREQUENCIES", String.format("%d,%d,%d,%d,%d,%d",
-					illuminaCovArray[1][0], illuminaCovArray[1][1], 
-					illuminaCovArray[1][2], illuminaCovArray[1][3], 
-					illuminaCovArray[1][4], illuminaCovArray[1][5]));
-			entry.setInfo("ILLUMINA_NEGATIVE_STRAND_FREQUENCIES", String.format("%d,%d,%d,%d,%d,%d",
-					illuminaCovArray[2][0], illuminaCovArray[2][1], 
-					illuminaCovArray[2][2], illuminaCovArray[2][3], 
-					illuminaCovArray[2][4], illuminaCovArray[2][5]));
+			entry.setInfo("ILLUMINA_POSITIVE_STRAND_FREQUENCIES", alleleCounts(illuminaCovArray, position, 1));
+			entry.setInfo("ILLUMINA_NEGATIVE_STRAND_FREQUENCIES", alleleCounts(illuminaCovArray, position, 2));
 		}
 		
 		else
@@ -358,46 +304,109 @@ public class AddAlleleFrequencies {
 
 	}
 	
+	// Builds up INFO values without going through String.format
+	static VcfWriter values = new VcfWriter();
+	
+	/*
+	 * Gets an allele frequency with six decimal places, or 0 if there is no depth
+	 */
+	static String frequency(int count, int total) throws Exception
+	{
+		if(total == 0)
+		{
+			return values.appendFrequency(0, 1).take();
+		}
+		return values.appendFrequency(count, total).take();
+	}
+	
+	/*
+	 * Gets the alt allele count and total depth on the positive and then the negative strand, separated by commas
+	 */
+	static String strandCounts(AlleleCounts covArray, int position, int altVal, int[] totals) throws Exception
+	{
+		return values.appendList(covArray.get(position, 1, altVal), totals[1], covArray.get(position, 2, altVal), totals[2]).take();
+	}
+	
+	/*
+	 * Gets the counts of A, C, G, T, N, and insertions on a strand, separated by commas
+	 */
+	static String alleleCounts(AlleleCounts covArray, int position, int strand) throws Exception
+	{
+		for(int i = 0; i<AlleleCounts.INSERTION + 1; i++)
+		{
+			if(i > 0)
+			{
+				values.append(',');
+			}
+			values.append(covArray.get(position, strand, i));
+		}
+		return values.take();
+	}
+	
+	/*
+	 * Gets the total depth on each strand at a position, not counting insertions
+	 */
+	static int[] getTotals(AlleleCounts covArray, int position)
+	{
+		int[] totals = new int[AlleleCounts.STRANDS];
+		for(int i = 0; i<totals.length; i++)
+		{
+			totals[i] = covArray.total(position, i, 0, AlleleCounts.ALLELES) - covArray.get(position, i, AlleleCounts.INSERTION);
+		}
+		return totals;
+	}
+	
 	static class Mpileup
 	{
-		// Map chromosome name to an array of frequencies indexed by (position, strand, base)
-		HashMap<String, int[][][]> allFrequencies;
+		// Map chromosome name to the frequencies indexed by (position, strand, base)
+		HashMap<String, AlleleCounts> allFrequencies;
 		
 		// The reference characters
 		HashMap<String, char[]> genome;
 		
 		/*
-		 * Take in an mpileup file and store the allele frequencies at each position
+		 * Take in an mpileup file (or a counts file from CallVariants) and store the allele frequencies at each position
 		 */
 		Mpileup(String fn) throws Exception
 		{
-			Scanner input = new Scanner(new FileInputStream(new File(fn)));
-			allFrequencies = new HashMap<String, int[][][]>();
-			while(input.hasNext())
+			// Load the counts directly if they were already saved by CallVariants
+			if(CountsFile.isCountsFile(fn))
 			{
-				String line = input.nextLine();
-				if(line.length() == 0 || line.startsWith("@"))
-				{
-					continue;
-				}
-				
-				String[] tokens = line.split("\t");
-				
-				// Get chromosome, position, and ref allele
-				String chrName = tokens[0];
-				int refPos = Integer.parseInt(tokens[1]) - 1;
-				char refChar = tokens[2].charAt(0);
-				
-				if(!allFrequencies.containsKey(chrName))
+				allFrequencies = CountsFile.read(fn, null);
+				return;
+			}
+			
+			// Only read the parts of the file covering the regions if there are any
+			ArrayList<PileupIndex.Slice> parts = new ArrayList<PileupIndex.Slice>();
+			if(regions != null)
+			{
+				parts = PileupIndex.slices(fn, regions);
+			}
+			else
+			{
+				parts.add(new PileupIndex.Slice(fn, 0, Long.MAX_VALUE, null, null));
+			}
+			
+			allFrequencies = new HashMap<String, AlleleCounts>();
+			for(PileupIndex.Slice part : parts)
+			{
+				MpileupReader input = part.open();
+				while(input.next())
 				{
-					allFrequencies.put(chrName, new int[maxLen][3][6]);
+					// Get chromosome and position
+					String chrName = input.chrom;
+					int refPos = input.pos - 1;
+					
+					if(!allFrequencies.containsKey(chrName))
+					{
+						allFrequencies.put(chrName, new AlleleCounts(maxLen));
+					}
+					
+					// Fill the frequency array at this position
+					input.countBases(allFrequencies.get(chrName), null, refPos);
 				}
-				
-				// Fill the frequency array at this position
-				int[][][] covArray = allFrequencies.get(chrName);
-				covArray[refPos] = CallVariants.getAlleleFreqs(refChar, tokens[4]);
+				input.close();
 			}
-			input.close();
 		}
 	}
 
@@ -0,0 +1,99 @@
+/*
+ * Storage for the allele counts at every position of a contig, backed by one flat array
+ * Counts are indexed by (position, strand, allele), where strand 0 is both strands combined,
+ * strand 1 is the positive strand, and strand 2 is the negative strand.
+ * The alleles are A, C, G, T, N, insertion, and deletion in that order.
+ */
+
+public class AlleleCounts
+{
+	static final int STRANDS = 3;
+	static final int ALLELES = 7;
+
+	// The number of array entries used by a single position
+	static final int STRIDE = STRANDS * ALLELES;
+
+	static final int INSERTION = 5;
+	static final int DELETION = 6;
+
+	// The counts for all positions, with each position taking STRIDE consecutive entries
+	int[] counts;
+
+	// The number of positions which can be stored
+	int length;
+
+	AlleleCounts(int length)
+	{
+		this.length = length;
+		counts = new int[length * STRIDE];
+	}
+
+	/*
+	 * The index in the counts array where the data for a position starts
+	 */
+	int offset(int pos)
+	{
+		return pos * STRIDE;
+	}
+
+	/*
+	 * Gets the count of a given allele on a given strand at a position
+	 */
+	int get(int pos, int strand, int allele)
+	{
+		return counts[pos * STRIDE + strand * ALLELES + allele];
+	}
+
+	/*
+	 * Adds one to the count of a given allele on a given strand at a position
+	 */
+	void increment(int pos, int strand, int allele)
+	{
+		counts[pos * STRIDE + strand * ALLELES + allele]++;
+	}
+
+	/*
+	 * Sets all of the counts at a position to zero
+	 */
+	void clear(int pos)
+	{
+		int start = pos * STRIDE;
+		for(int i = start; i<start + STRIDE; i++)
+		{
+			counts[i] = 0;
+		}
+	}
+
+	/*
+	 * Adds up the counts on a strand for alleles in the range [fromAllele, toAllele)
+	 */
+	int total(int pos, int strand, int fromAllele, int toAllele)
+	{
+		int start = pos * STRIDE + strand * ALLELES;
+		int res = 0;
+		for(int i = start + fromAllele; i<start + toAllele; i++)
+		{
+			res += counts[i];
+		}
+		return res;
+	}
+
+	/*
+	 * Prints the counts on a strand at a position in the same format as Arrays.toString
+	 */
+	String toString(int pos, int strand)
+	{
+		int start = pos * STRIDE + strand * ALLELES;
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i<ALLELES; i++)
+		{
+			if(i > 0)
+			{
+				sb.append(", ");
+			}
+			sb.append(counts[start + i]);
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+}
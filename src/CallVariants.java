@@ -2,22 +2,44 @@
  * Code for calling SNPs based on simple thresholds with samtools mpileup
  */
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 public class CallVariants {
 	static int maxLen = 31000;
 	static String pileupFn = "", ofn = "";
+	static String manifestFn = "";
+	static String countsFn = "";
+	static String sweepFn = "";
+	static String regionsFn = "";
+	
+	// The regions to call variants in, or null to use the whole pileup
+	static Regions regions = null;
+	static String alignmentFn = "", genomeFn = "";
+	static int minBaseQuality = 13;
 	static int covThreshold = 20;
 	static double refThreshold = .6;
 	static double altThreshold = .15;
 	static double indelThreshold = .15;
 	static String flagPrefix = "";
+	static boolean streaming = false;
+	static int threads = 1;
+	
+	// Whether to log the details of each indel and N call
+	static boolean logCalls = true;
+	
+	// The fewest positions whose variants are called by a single task when calling in parallel
+	static final int MIN_CALL_RANGE_SIZE = 1 << 10;
 	
 	/*
 	 * Prints out usage instructions
@@ -30,6 +52,16 @@ public class CallVariants {
 		System.out.println("Required args:");
 		System.out.println("  pileup_file (String) - the output of samtools mpileup with the read alignments and reference");
 		System.out.println("  out_file    (String) - the output file to call SNPs");
+		System.out.println("    or");
+		System.out.println("  manifest    (String) - a file with one sample per line: a pileup file and the VCF to write, separated by a tab,");
+		System.out.println("                         optionally followed by a counts_file for the sample (not with streaming)");
+		System.out.println("    or");
+		System.out.println("  sweep_file  (String) - a table of threshold sets to call with, along with pileup_file or alignment_file,");
+		System.out.println("                         and out_file for a summary of the number of calls with each set");
+		System.out.println("    or");
+		System.out.println("  alignment_file (String) - a SAM file with the read alignments (- for standard input) to count directly instead of a pileup");
+		System.out.println("  genome_file    (String) - a FASTA file with the reference genome, required with alignment_file");
+		System.out.println("  out_file       (String) - the output file to call SNPs");
 
 		System.out.println();
 		System.out.println("Optional args:");
@@ -39,6 +71,13 @@ public class CallVariants {
 		System.out.println("  ref_threshold       (float)  [0.60]  - call an N even if no alt allele frequency is high enough if ref allele frequency < this value");
 		System.out.println("  indel_threshold       (float)  [0.15]  - call a variant an indel if no other variant is called there and indel frequency > this value");
 		System.out.println("  flag_prefix         (String) []      - add this to AF and STRANDAF flag names");
+		System.out.println("  streaming           (boolean) [false] - call variants while reading a position-sorted pileup instead of storing the whole genome");
+		System.out.println("  threads             (int)    [1]     - the number of threads to use for parsing the pileup and calling variants (not used when streaming)");
+		System.out.println("                                           with a manifest, the number of samples processed at once");
+		System.out.println("  min_base_quality    (int)    [13]    - with alignment_file, the min base quality for a base to be counted, as in samtools mpileup");
+		Diagnostics.usage();
+		System.out.println("  regions             (String) []      - a BED file of the regions to call variants in, read from the pileup using an index saved as <pileup_file>.vvi");
+		System.out.println("  counts_file         (String) []      - also save the allele counts to this binary file for AddAlleleFrequencies or CheckVariants (not used when streaming)");
 
 		System.out.println();
 	}
@@ -92,297 +131,700 @@ public class CallVariants {
 				{
 					flagPrefix = val;
 				}
+				else if(key.equals("streaming"))
+				{
+					streaming = Boolean.parseBoolean(val);
+				}
+				else if(key.equals("threads"))
+				{
+					threads = Integer.parseInt(val);
+				}
+				else if(key.equals("manifest"))
+				{
+					manifestFn = val;
+				}
+				else if(key.equals("alignment_file"))
+				{
+					alignmentFn = val;
+				}
+				else if(key.equals("genome_file"))
+				{
+					genomeFn = val;
+				}
+				else if(key.equals("min_base_quality"))
+				{
+					minBaseQuality = Integer.parseInt(val);
+				}
+				else if(key.equals("counts_file"))
+				{
+					countsFn = val;
+				}
+				else if(key.equals("sweep_file"))
+				{
+					sweepFn = val;
+				}
+				else if(key.equals("regions"))
+				{
+					regionsFn = val;
+				}
+				else
+				{
+					Diagnostics.parseArg(key, val);
+				}
 			}
 		}
-		if(pileupFn.length() == 0 || ofn.length() == 0)
+		boolean hasInput = pileupFn.length() > 0 || (alignmentFn.length() > 0 && genomeFn.length() > 0);
+		if(manifestFn.length() == 0 && (!hasInput || ofn.length() == 0))
 		{
 			usage();
 			System.exit(1);
 		}
+		if(streaming && countsFn.length() > 0)
+		{
+			System.out.println("counts_file cannot be used with streaming, since the counts of the whole genome are never stored");
+			System.exit(1);
+		}
 	}
 public static void main(String[] args) throws Exception
 {
 	parseArgs(args);
 	
-	// Parse the cigar strings of read alignments and count up allele frequencies 
-	System.err.println("Counting coverage from alignments");
-	Scanner input = new Scanner(new FileInputStream(new File(pileupFn)));
-	HashMap<String, int[][][]> cov = new HashMap<String, int[][][]>();
-	HashMap<String, String[]> lines = new HashMap<String, String[]>();
-	HashMap<String, char[]> genome = new HashMap<String, char[]>();
+	if(regionsFn.length() > 0)
+	{
+		regions = new Regions(regionsFn);
+	}
+	
+	if(manifestFn.length() > 0)
+	{
+		callBatch();
+	}
+	else if(sweepFn.length() > 0)
+	{
+		callSweep();
+	}
+	else if(alignmentFn.length() > 0)
+	{
+		callFromAlignments(alignmentFn, genomeFn, ofn, countsFn, threads);
+	}
+	else if(streaming)
+	{
+		callStreaming(pileupFn, ofn);
+	}
+	else
+	{
+		callWholeGenome(pileupFn, ofn, countsFn, new SampleBuffers(), threads);
+	}
+	Diagnostics.close();
+}
+
+/*
+ * Calls variants for every sample in the manifest, running several samples at once in this JVM
+ * Each worker thread keeps its count buffers and reuses them for every sample it processes
+ */
+static void callBatch() throws Exception
+{
+	ArrayList<String[]> samples = new ArrayList<String[]>();
+	Scanner input = new Scanner(CompressedFiles.open(manifestFn));
 	while(input.hasNext())
 	{
-		String line = input.nextLine();
-		if(line.startsWith("@"))
+		String line = input.nextLine().trim();
+		if(line.length() == 0 || line.startsWith("#"))
 		{
 			continue;
 		}
-		//System.out.println(line);
-		String[] tokens = line.split("\t");
-		
-		String chrName = tokens[0];
-		int refPos = Integer.parseInt(tokens[1]) - 1;
-
-		char refChar = tokens[2].charAt(0);
-		
-		if(!cov.containsKey(chrName))
+		String[] tokens = line.split(line.indexOf('\t') == -1 ? "\\s+" : "\t");
+		if(tokens.length < 2)
 		{
-			cov.put(chrName, new int[maxLen][3][6]);
-			lines.put(chrName, new String[maxLen]);
-			genome.put(chrName, new char[maxLen]);
+			throw new Exception("Manifest line does not have both a pileup and an output file: " + line);
 		}
-		
-		genome.get(chrName)[refPos] = refChar;
-		
-		int[][][] covArray = cov.get(chrName);
-		
-		covArray[refPos] = getAlleleFreqs(refChar, tokens[4]);
-		
-		lines.get(chrName)[refPos] = line;
+		if(streaming && tokens.length > 2 && tokens[2].length() > 0)
+		{
+			throw new Exception("Manifest line has a counts file, which cannot be used with streaming: " + line);
+		}
+		samples.add(new String[] {tokens[0], tokens[1], tokens.length > 2 ? tokens[2] : ""});
 	}
 	input.close();
 	
-	// Now go through every position and output a variant if the allele frequencies indicate a variant
-	System.err.println("Calling variants");
+	System.err.println("Calling variants for " + samples.size() + " samples");
+	long batchStart = System.nanoTime();
 	
-	PrintWriter out = new PrintWriter(ofn);
+	ThreadLocal<SampleBuffers> buffers = ThreadLocal.withInitial(SampleBuffers::new);
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+	ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+	for(String[] sample : samples)
+	{
+		results.add(pool.submit(() ->
+		{
+			long start = System.nanoTime();
+			int numCalls = streaming ? callStreaming(sample[0], sample[1]) : callWholeGenome(sample[0], sample[1], sample[2], buffers.get(), 1);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			// Throughput is measured by the size of the file on disk, which is the compressed size for gzipped pileups
+			long bytes = new File(sample[0]).length();
+			System.err.println("Finished " + sample[0] + ": " + numCalls + " variants in " + String.format("%.2f", seconds) + " s ("
+					+ String.format("%.1f", bytes / 1e6 / seconds) + " MB/s on disk)");
+			return bytes;
+		}));
+	}
 	
-	// Loop over every ref contig
-	int varId = 0;
-	for(String s : cov.keySet())
-	{
-		// Get an array of allele frequencies for this contig
-		int[][][] covArray = cov.get(s);
-		HashSet<Integer> deleted = new HashSet<Integer>();
-		for(int i = 0; i<covArray.length; i++)
-		{
-			// Total coverage over this position only counting matches/mismatches
-			int totalCov = 0;
-			for(int j = 0; j<5; j++) totalCov += covArray[i][0][j];
-			
-			if(totalCov < covThreshold) continue;
-			
-			// The character in the reference at this position
-			int refChar = charToInt(genome.get(s)[i]);
-			
-			// Check for possible ALT alleles with high enough frequency
-			int alt = -1;
-			for(int j = 0; j<4; j++)
-			{
-				if(j != refChar && covArray[i][0][j] >= totalCov * altThreshold)
-				{
-					// Just in case multiple alts qualify, take the more frequent one
-					if(alt != -1 && covArray[i][0][alt] > covArray[i][0][j])
-					{
-						continue;
-					}
-					alt = j;
-				}
-			}
-			String indelSeq = "";
-			
-			if(alt == -1 && (covArray[i][0][5] >= totalCov * indelThreshold || covArray[i][0][6] >= totalCov * indelThreshold))
-			{
-				String x = getIndelSeq(lines.get(s)[i]);
-				if(x.length() > 0)
-				{
-					if(covArray[i][0][5] >= totalCov * indelThreshold)
-					{
-						alt = 5;
-					}
-					else if(covArray[i][0][6] >= totalCov * indelThreshold)
-					{
-						for(int j = i; j<i+x.length(); j++)
-						{
-							deleted.add(j+1);
-						}
-						alt = 6;
-					}
-					System.out.println("Indel at position " + i + ": "+Arrays.toString(covArray[i][0])+" "+totalCov);
-					indelSeq = x;
-				}
-			}
-			
-			if(alt == -1 && covArray[i][0][refChar] < (totalCov) * refThreshold && !deleted.contains(i))
-			{
-				System.out.println("Calling N at " + i + " " + Arrays.toString(covArray[i][0]) + " " + refChar);
-				alt = 4;
-			}
-			
-			if(alt != -1)
-			{
-				int totalPositive = 0, totalNegative = 0;
-				for(int j = 0; j<covArray[i][1].length; j++)
-				{
-					totalPositive += covArray[i][1][j];
-					totalNegative += covArray[i][2][j];
-				}
-				String refString = genome.get(s)[i] + "";
-				String altString = intToChar(alt) + "";
-				if(alt == 6)
-				{
-					altString = refString;
-					refString = refString + indelSeq;
-				}
-				else if(alt == 5)
-				{
-					altString = refString + indelSeq;
-				}
-				out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s;%s\n",
-						s,
-						i+1,
-						"var" + varId,
-						refString,
-						altString,
-						".",
-						".",
-						flagPrefix + "AF=" + String.format("%.6f", 1.0 * covArray[i][0][alt] / totalCov),
-						flagPrefix + "STRANDAF=" + String.format("%d,%d,%d,%d", 
-								covArray[i][1][alt], totalPositive, covArray[i][2][alt], totalNegative));
-				varId++;
-			}
+	long totalBytes = 0;
+	int failures = 0;
+	for(int i = 0; i<results.size(); i++)
+	{
+		try
+		{
+			totalBytes += results.get(i).get();
+		}
+		catch(ExecutionException e)
+		{
+			System.err.println("Failed to call variants for " + samples.get(i)[0] + ": " + e.getCause());
+			failures++;
 		}
 	}
+	pool.shutdown();
 	
-	out.close();
+	double seconds = (System.nanoTime() - batchStart) / 1e9;
+	System.err.println("Processed " + (samples.size() - failures) + " samples in " + String.format("%.2f", seconds) + " s ("
+			+ String.format("%.2f", (samples.size() - failures) / seconds) + " samples/s, " + String.format("%.1f", totalBytes / 1e6 / seconds) + " MB/s on disk)");
+	if(failures > 0)
+	{
+		System.exit(1);
+	}
 }
 
-static String getIndelSeq(String pileup)
+/*
+ * Counts alleles once and then calls variants with each set of thresholds in the sweep file, writing one VCF per set
+ * The threshold sets are called in parallel, and a table with the number of each type of call is written to out_file
+ * The sweep file has a header with any of alt_threshold, ref_threshold, indel_threshold, coverage_threshold,
+ * and out_file, and then one line per set, with missing thresholds taken from the command line
+ */
+static void callSweep() throws Exception
 {
-	String[] tabTokens = pileup.split("\t");
-	ArrayList<String> seqs = new ArrayList<String>();
-	for(int i = 0; i<tabTokens[4].length(); i++)
+	ArrayList<String[]> rows = new ArrayList<String[]>();
+	Scanner input = new Scanner(CompressedFiles.open(sweepFn));
+	String[] header = null;
+	while(input.hasNext())
 	{
-		char c = pileup.charAt(i);
-		
-		if(c == '+' || c == '-')
+		String line = input.nextLine().trim();
+		if(line.length() == 0 || line.startsWith("#"))
 		{
-			int end = i;
-			int length = 0;
-			while(end+1 < pileup.length() && pileup.charAt(end+1) >= '0' && pileup.charAt(end+1)<= '9')
-			{
-				end++;
-				length = length * 10 + pileup.charAt(end) - '0';
-			}
-			String seq = pileup.substring(end+1, end+1+length);
-			seqs.add(seq.toUpperCase());
-			i = end + length;
+			continue;
+		}
+		String[] tokens = line.split(line.indexOf('\t') == -1 ? "\\s+" : "\t");
+		if(header == null)
+		{
+			header = tokens;
+		}
+		else if(tokens.length != header.length)
+		{
+			throw new Exception("Sweep file line does not have one value for each column: " + line);
+		}
+		else
+		{
+			rows.add(tokens);
 		}
 	}
-	HashMap<String, Integer> seqFreq = new HashMap<String, Integer>();
-	for(String x : seqs)
+	input.close();
+	if(header == null)
 	{
-		seqFreq.put(x, 1 + seqFreq.getOrDefault(x, 0));
+		throw new Exception("Sweep file is empty: " + sweepFn);
 	}
-	for(String x : seqFreq.keySet())
+	
+	// Build the threshold set and output file for each line
+	Thresholds[] sets = new Thresholds[rows.size()];
+	String[] outFiles = new String[rows.size()];
+	String outPrefix = ofn.lastIndexOf('.') > ofn.lastIndexOf('/') ? ofn.substring(0, ofn.lastIndexOf('.')) : ofn;
+	for(int i = 0; i<rows.size(); i++)
 	{
-		if(seqFreq.get(x) > .8 * seqs.size())
+		sets[i] = defaultThresholds();
+		outFiles[i] = outPrefix + "." + (i+1) + ".vcf";
+		for(int j = 0; j<header.length; j++)
 		{
-			return x;
+			String key = header[j].toLowerCase(), val = rows.get(i)[j];
+			if(key.equals("alt_threshold")) sets[i].alt = Double.parseDouble(val);
+			else if(key.equals("ref_threshold")) sets[i].ref = Double.parseDouble(val);
+			else if(key.equals("indel_threshold")) sets[i].indel = Double.parseDouble(val);
+			else if(key.equals("coverage_threshold")) sets[i].coverage = Integer.parseInt(val);
+			else if(key.equals("out_file")) outFiles[i] = val;
+			else throw new Exception("Unknown sweep file column: " + header[j]);
 		}
 	}
-	return "";
+	
+	SampleBuffers buffers = new SampleBuffers();
+	ArrayList<String> contigs = alignmentFn.length() > 0 ? countAlignments(alignmentFn, genomeFn, buffers)
+			: parseWholeGenome(pileupFn, buffers, threads);
+	if(countsFn.length() > 0)
+	{
+		CountsFile.write(countsFn, contigs, buffers.cov);
+	}
+	
+	// The details of every call would be interleaved between threshold sets, so leave them out
+	logCalls = false;
+	
+	System.err.println("Calling variants with " + sets.length + " threshold sets");
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+	ArrayList<Future<int[]>> results = new ArrayList<Future<int[]>>();
+	for(int i = 0; i<sets.length; i++)
+	{
+		Thresholds set = sets[i];
+		String setOfn = outFiles[i];
+		results.add(pool.submit(() ->
+		{
+			int[] altCounts = new int[AlleleCounts.ALLELES];
+			writeCalls(setOfn, buffers, contigs, set, 1, altCounts);
+			return altCounts;
+		}));
+	}
+	pool.shutdown();
+	
+	VcfWriter out = new VcfWriter(ofn);
+	out.append("vcf_file\talt_threshold\tref_threshold\tindel_threshold\tcoverage_threshold\tvariants\tsnps\tns\tinsertions\tdeletions").newline();
+	for(int i = 0; i<sets.length; i++)
+	{
+		int[] altCounts = results.get(i).get();
+		int snps = altCounts[0] + altCounts[1] + altCounts[2] + altCounts[3];
+		int total = snps + altCounts[4] + altCounts[5] + altCounts[6];
+		out.append(outFiles[i]).append('\t').append(Double.toString(sets[i].alt)).append('\t').append(Double.toString(sets[i].ref))
+			.append('\t').append(Double.toString(sets[i].indel)).append('\t').append(sets[i].coverage);
+		out.append('\t').append(total).append('\t').append(snps).append('\t').append(altCounts[4])
+			.append('\t').append(altCounts[5]).append('\t').append(altCounts[6]).newline();
+	}
+	out.close();
 }
 
 /*
- * Gets the number of A/C/G/T/N's covering a position from an mpileup string
+ * Reads the entire pileup into per-contig arrays and then calls variants at every position
+ * With multiple threads, chunks of the pileup are parsed in parallel and each contig is
+ * called in parallel over ranges of positions, with calls still output in position order
+ * Returns the number of variants which were output
  */
-static int[][] getAlleleFreqs(char refChar, String pileup)
+static int callWholeGenome(String pileupFn, String ofn, String countsFn, SampleBuffers buffers, int threads) throws Exception
 {
-	int[][] res = new int[3][7];
-	for(int i = 0; i<res.length; i++)
+	ArrayList<String> contigs = parseWholeGenome(pileupFn, buffers, threads);
+	
+	if(countsFn.length() > 0)
 	{
-		res[i] = new int[7];
+		CountsFile.write(countsFn, contigs, buffers.cov);
 	}
-	for(int i = 0; i<pileup.length(); i++)
+	
+	return writeCalls(ofn, buffers, contigs, defaultThresholds(), threads, null);
+}
+
+/*
+ * Reads the entire pileup (or only the lines in the regions if they are given) into the per-contig arrays
+ * of the given buffers, in parallel chunks when using multiple threads
+ * Returns the contigs in the order they first appear in the pileup
+ */
+static ArrayList<String> parseWholeGenome(String pileupFn, SampleBuffers buffers, int threads) throws Exception
+{
+	// Parse the cigar strings of read alignments and count up allele frequencies 
+	System.err.println("Counting coverage from alignments");
+	buffers.reset();
+	ConcurrentHashMap<String, AlleleCounts> cov = buffers.cov;
+	ConcurrentHashMap<String, IndelCounts> indels = buffers.indels;
+	ConcurrentHashMap<String, char[]> genome = buffers.genome;
+	
+	// The contigs in the order they first appear in the pileup
+	ArrayList<String> contigs = new ArrayList<String>();
+	
+	// The parts of the file to parse, which cover disjoint positions of each contig
+	ArrayList<PileupIndex.Slice> parts = new ArrayList<PileupIndex.Slice>();
+	if(regions != null)
 	{
-		char c = pileup.charAt(i);
-		
-		// Exact match so use ref character
-		if(c == '.' || c == ',')
+		parts = PileupIndex.slices(pileupFn, regions);
+	}
+	else if(threads <= 1)
+	{
+		parts.add(new PileupIndex.Slice(pileupFn, 0, Long.MAX_VALUE, null, null));
+	}
+	else
+	{
+		// Split the file into chunks of whole lines
+		long[] bounds = MpileupReader.chunkBoundaries(pileupFn, threads * 4);
+		for(int i = 0; i<bounds.length - 1; i++)
 		{
-			res[0][charToInt(refChar)]++;
-			if(c == '.')
-			{
-				res[1][charToInt(refChar)]++;
-			}
-			else
-			{
-				res[2][charToInt(refChar)]++;
-			}
+			parts.add(new PileupIndex.Slice(pileupFn, bounds[i], bounds[i+1], null, null));
 		}
-		
-		// Insertion or deletion after this base so ignore
-		else if(c == '+' || c == '-')
+	}
+	
+	if(threads <= 1)
+	{
+		for(PileupIndex.Slice part : parts)
 		{
-			int end = i;
-			int length = 0;
-			while(end+1 < pileup.length() && pileup.charAt(end+1) >= '0' && pileup.charAt(end+1)<= '9')
-			{
-				end++;
-				length = length * 10 + pileup.charAt(end) - '0';
-			}
-			boolean capital = (pileup.charAt(end+1) >= 'A' && pileup.charAt(end+1) <= 'Z') || pileup.charAt(end+1) == '*';
-			i = end + length;
-			
-			int idx = 5;
-			if(c == '-') idx = 6;
-			res[0][idx]++;
-			if(capital)
+			parsePileup(part.open(), cov, indels, genome, contigs);
+		}
+	}
+	else
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<ArrayList<String>>> chunks = new ArrayList<Future<ArrayList<String>>>();
+		for(PileupIndex.Slice part : parts)
+		{
+			chunks.add(pool.submit(() -> 
 			{
-				res[1][idx]++;
-			}
-			else
+				ArrayList<String> chunkContigs = new ArrayList<String>();
+				parsePileup(part.open(), cov, indels, genome, chunkContigs);
+				return chunkContigs;
+			}));
+		}
+		pool.shutdown();
+		for(Future<ArrayList<String>> chunk : chunks)
+		{
+			for(String s : chunk.get())
 			{
-				res[2][idx]++;
+				if(!contigs.contains(s))
+				{
+					contigs.add(s);
+				}
 			}
 		}
-		
-		else if(c == '*')
+	}
+	return contigs;
+}
+
+/*
+ * Counts alleles directly from the reads in a SAM file and then calls variants at every position
+ * Returns the number of variants which were output
+ */
+static int callFromAlignments(String alignmentFn, String genomeFn, String ofn, String countsFn, int threads) throws Exception
+{
+	SampleBuffers buffers = new SampleBuffers();
+	ArrayList<String> contigs = countAlignments(alignmentFn, genomeFn, buffers);
+	
+	if(countsFn.length() > 0)
+	{
+		CountsFile.write(countsFn, contigs, buffers.cov);
+	}
+	
+	return writeCalls(ofn, buffers, contigs, defaultThresholds(), threads, null);
+}
+
+/*
+ * Counts alleles from the reads in a SAM file into the given buffers, which must be empty
+ * Returns the contigs in the order their first alignment appears
+ */
+static ArrayList<String> countAlignments(String alignmentFn, String genomeFn, SampleBuffers buffers) throws Exception
+{
+	System.err.println("Reading genome");
+	HashMap<String, byte[]> reference = SamPileup.readGenome(genomeFn);
+	
+	System.err.println("Counting coverage from alignments");
+	ArrayList<String> contigs = new ArrayList<String>();
+	new SamPileup(reference, minBaseQuality, buffers.cov, buffers.indels, contigs).addAlignments(alignmentFn);
+	
+	for(String s : contigs)
+	{
+		buffers.genome.put(s, new String(reference.get(s)).toUpperCase().toCharArray());
+	}
+	return contigs;
+}
+
+/*
+ * Goes through every position of every contig and outputs a variant if the allele frequencies indicate one
+ * Contigs are called in parallel over ranges of positions when using multiple threads
+ * If altCounts is not null, the number of variants output with each alt allele index is added to it
+ * Returns the number of variants which were output
+ */
+static int writeCalls(String ofn, SampleBuffers buffers, ArrayList<String> contigs, Thresholds thresholds, int threads, int[] altCounts) throws Exception
+{
+	System.err.println("Calling variants");
+	ConcurrentHashMap<String, AlleleCounts> cov = buffers.cov;
+	ConcurrentHashMap<String, IndelCounts> indels = buffers.indels;
+	ConcurrentHashMap<String, char[]> genome = buffers.genome;
+	
+	VcfWriter out = new VcfWriter(ofn);
+	
+	ForkJoinPool callPool = threads > 1 ? new ForkJoinPool(threads) : null;
+	
+	// Start calling every contig at once, split into a few ranges per thread, so small contigs are called side by side
+	ArrayList<CallRangeTask> tasks = new ArrayList<CallRangeTask>();
+	for(String s : contigs)
+	{
+		AlleleCounts covArray = cov.get(s);
+		// Without a pool the range is never split, since forking would run it on the common pool
+		int grain = callPool == null ? covArray.length : Math.max(MIN_CALL_RANGE_SIZE, covArray.length / (threads * 4));
+		CallRangeTask task = new CallRangeTask(covArray, genome.get(s), indels.get(s), thresholds, 0, covArray.length, grain);
+		if(callPool != null)
 		{
-			res[0][5]++;
-			res[1][5]++;
+			callPool.execute(task);
 		}
+		tasks.add(task);
+	}
+	
+	// Write the calls of each contig in order as they finish
+	int varId = 0;
+	for(int c = 0; c<contigs.size(); c++)
+	{
+		String s = contigs.get(c);
+		AlleleCounts covArray = cov.get(s);
+		CallRangeTask task = tasks.get(c);
+		ArrayList<Call> calls = callPool == null ? task.compute() : task.join();
 		
-		else if(c == '#')
+		PositionSet deleted = new PositionSet(covArray.length);
+		for(Call call : calls)
 		{
-			res[0][5]++;
-			res[2][5]++;
+			int nextId = emitCall(out, s, call, deleted, varId);
+			if(altCounts != null && nextId > varId)
+			{
+				altCounts[call.alt]++;
+			}
+			varId = nextId;
 		}
+	}
+	if(callPool != null)
+	{
+		callPool.shutdown();
+	}
+	
+	out.close();
+	return varId;
+}
+
+/*
+ * Counts up allele frequencies from all of the lines of a pileup reader, adding contigs to the maps as they are seen
+ * Contigs are added to the list in the order they first appear
+ */
+static void parsePileup(MpileupReader input, ConcurrentHashMap<String, AlleleCounts> cov, ConcurrentHashMap<String, IndelCounts> indels,
+		ConcurrentHashMap<String, char[]> genome, ArrayList<String> contigs) throws Exception
+{
+	String lastChr = null;
+	AlleleCounts covArray = null;
+	IndelCounts contigIndels = null;
+	char[] contigGenome = null;
+	while(input.next())
+	{
+		String chrName = input.chrom;
+		int refPos = input.pos - 1;
+
+		char refChar = input.ref;
 		
-		// Last character indicator - ignore
-		else if(c == '$')
+		if(!chrName.equals(lastChr))
 		{
-			continue;
+			covArray = cov.computeIfAbsent(chrName, k -> new AlleleCounts(maxLen));
+			contigIndels = indels.computeIfAbsent(chrName, k -> new IndelCounts(maxLen));
+			contigGenome = genome.computeIfAbsent(chrName, k -> new char[maxLen]);
+			if(!contigs.contains(chrName))
+			{
+				contigs.add(chrName);
+			}
+			lastChr = chrName;
 		}
 		
-		// First character indicator - ignore
-		else if(c == '^')
+		if(refPos >= maxLen)
 		{
-			i++;
-			continue;
+			throw new Exception("Position " + chrName + ":" + (refPos+1) + " is past genome_max_len (" + maxLen + ")");
 		}
 		
-		// Mismatch or N so count this character after converting it to an integer
-		else
+		contigGenome[refPos] = refChar;
+		
+		input.countBases(covArray, contigIndels, refPos);
+	}
+	input.close();
+}
+
+/*
+ * Calls variants while reading a position-sorted pileup, only remembering the deletions
+ * which extend past the current position, so memory does not depend on genome length
+ * Returns the number of variants which were output
+ */
+static int callStreaming(String pileupFn, String ofn) throws Exception
+{
+	System.err.println("Calling variants from position-sorted pileup");
+	Thresholds thresholds = defaultThresholds();
+	ArrayList<PileupIndex.Slice> parts = new ArrayList<PileupIndex.Slice>();
+	if(regions != null)
+	{
+		parts = PileupIndex.slices(pileupFn, regions);
+	}
+	else
+	{
+		parts.add(new PileupIndex.Slice(pileupFn, 0, Long.MAX_VALUE, null, null));
+	}
+	VcfWriter out = new VcfWriter(ofn);
+	
+	// The contigs which have already been fully processed
+	HashSet<String> finishedContigs = new HashSet<String>();
+	
+	// Positions later in the current contig which are covered by a called deletion
+	PositionSet deleted = new PositionSet();
+	
+	// The counts for the current position, reused for every line
+	AlleleCounts window = new AlleleCounts(1);
+	IndelCounts windowIndels = new IndelCounts(1);
+	
+	String lastChr = null;
+	int lastPos = -1;
+	int varId = 0;
+	for(PileupIndex.Slice part : parts)
+	{
+		MpileupReader input = part.open();
+		while(input.next())
 		{
-			int val = charToInt(c);
-			if(val != -1)
+			String chrName = input.chrom;
+			int refPos = input.pos - 1;
+			char refChar = input.ref;
+		
+			if(!chrName.equals(lastChr))
 			{
-				res[0][charToInt(c)]++;
-				
-				if(Character.isUpperCase(c) || c == '>')
+				if(lastChr != null)
 				{
-					res[1][charToInt(c)]++;
+					finishedContigs.add(lastChr);
 				}
-				if(Character.isLowerCase(c) || c == '<')
+				if(finishedContigs.contains(chrName))
 				{
-					res[2][charToInt(c)]++;
+					throw new Exception("Pileup is not sorted: contig " + chrName + " appears in more than one block");
 				}
+				lastChr = chrName;
+				lastPos = -1;
+				deleted.clear();
+			}
+			else if(refPos <= lastPos)
+			{
+				throw new Exception("Pileup is not position-sorted: " + chrName + ":" + (refPos+1) + " comes after " + chrName + ":" + (lastPos+1));
+			}
+			lastPos = refPos;
+		
+			// Deletions never reach backwards, so positions behind this one can be forgotten
+			deleted.removeBelow(refPos);
+		
+			input.countBases(window, windowIndels, 0);
+			Call call = evaluatePosition(refPos, refChar, window, windowIndels, 0, thresholds);
+			if(call != null)
+			{
+				varId = emitCall(out, chrName, call, deleted, varId);
 			}
 		}
+		input.close();
 	}
-	return res;
+	out.close();
+	return varId;
+}
+
+/*
+ * Decides whether there could be a variant at position i based on the allele frequencies and indel sequences stored at index slot
+ * Returns null if there is no variant, or else the call, which may still be filtered out by emitCall if it is an N inside a deletion
+ */
+static Call evaluatePosition(int i, char refBase, AlleleCounts counts, IndelCounts indels, int slot, Thresholds thresholds)
+{
+	double altThreshold = thresholds.alt, refThreshold = thresholds.ref, indelThreshold = thresholds.indel;
+	
+	// Total coverage over this position only counting matches/mismatches
+	int totalCov = counts.total(slot, 0, 0, 5);
+	
+	if(totalCov < thresholds.coverage) return null;
+	
+	// The character in the reference at this position
+	int refChar = charToInt(refBase);
+	
+	// Check for possible ALT alleles with high enough frequency
+	int alt = -1;
+	for(int j = 0; j<4; j++)
+	{
+		if(j != refChar && counts.get(slot, 0, j) >= totalCov * altThreshold)
+		{
+			// Just in case multiple alts qualify, take the more frequent one
+			if(alt != -1 && counts.get(slot, 0, alt) > counts.get(slot, 0, j))
+			{
+				continue;
+			}
+			alt = j;
+		}
+	}
+	String indelSeq = "";
+	
+	if(alt == -1 && (counts.get(slot, 0, 5) >= totalCov * indelThreshold || counts.get(slot, 0, 6) >= totalCov * indelThreshold))
+	{
+		String x = indels.consensus(slot);
+		if(x.length() > 0)
+		{
+			if(counts.get(slot, 0, 5) >= totalCov * indelThreshold)
+			{
+				alt = 5;
+			}
+			else if(counts.get(slot, 0, 6) >= totalCov * indelThreshold)
+			{
+				alt = 6;
+			}
+			indelSeq = x;
+		}
+	}
+	
+	if(alt == -1 && counts.get(slot, 0, refChar) < (totalCov) * refThreshold)
+	{
+		alt = 4;
+	}
+	
+	if(alt == -1)
+	{
+		return null;
+	}
+	
+	Call call = new Call();
+	call.pos = i;
+	call.refBase = refBase;
+	call.refChar = refChar;
+	call.alt = alt;
+	call.indelSeq = indelSeq;
+	call.totalCov = totalCov;
+	call.altCount = counts.get(slot, 0, alt);
+	call.altPositive = counts.get(slot, 1, alt);
+	call.altNegative = counts.get(slot, 2, alt);
+	call.totalPositive = counts.total(slot, 1, 0, AlleleCounts.ALLELES);
+	call.totalNegative = counts.total(slot, 2, 0, AlleleCounts.ALLELES);
+	
+	// Only needed for the diagnostics of indels and Ns
+	if(logCalls && alt >= 4 && Diagnostics.enabled(Diagnostics.Level.INFO))
+	{
+		call.countString = counts.toString(slot, 0);
+	}
+	return call;
+}
+
+/*
+ * Outputs a call on contig s unless it is an N inside an earlier deletion
+ * Positions covered by called deletions are added to the deleted set, and the updated variant ID counter is returned
+ */
+static int emitCall(VcfWriter out, String s, Call call, PositionSet deleted, int varId) throws Exception
+{
+	int i = call.pos;
+	int alt = call.alt;
+	if(alt == 6)
+	{
+		deleted.addRange(i+1, i+1+call.indelSeq.length());
+	}
+	if(logCalls && (alt == 5 || alt == 6) && Diagnostics.enabled(Diagnostics.Level.INFO))
+	{
+		Diagnostics.log(Diagnostics.Level.INFO, "indel", s, i+1, "Indel at position " + i + ": "+call.countString+" "+call.totalCov);
+	}
+	if(alt == 4)
+	{
+		if(deleted.contains(i))
+		{
+			return varId;
+		}
+		if(logCalls && Diagnostics.enabled(Diagnostics.Level.INFO))
+		{
+			Diagnostics.log(Diagnostics.Level.INFO, "n_call", s, i+1, "Calling N at " + i + " " + call.countString + " " + call.refChar);
+		}
+	}
+	
+	out.append(s).append('\t').append(i+1).append('\t').append("var").append(varId).append('\t');
+	if(alt == 6)
+	{
+		out.append(call.refBase).append(call.indelSeq).append('\t').append(call.refBase);
+	}
+	else if(alt == 5)
+	{
+		out.append(call.refBase).append('\t').append(call.refBase).append(call.indelSeq);
+	}
+	else
+	{
+		out.append(call.refBase).append('\t').append(intToChar(alt));
+	}
+	out.append("\t.\t.\t");
+	out.append(flagPrefix).append("AF=").appendFrequency(call.altCount, call.totalCov).append(';');
+	out.append(flagPrefix).append("STRANDAF=").appendList(call.altPositive, call.totalPositive, call.altNegative, call.totalNegative);
+	out.newline();
+	return varId + 1;
 }
 
 /*
@@ -408,6 +850,128 @@ static char intToChar(int val)
 	else return 'N';
 }
 
+/*
+ * The per-contig arrays which are filled while parsing a pileup, kept so they can be reused for another sample
+ */
+static class SampleBuffers
+{
+	ConcurrentHashMap<String, AlleleCounts> cov = new ConcurrentHashMap<String, AlleleCounts>();
+	ConcurrentHashMap<String, IndelCounts> indels = new ConcurrentHashMap<String, IndelCounts>();
+	ConcurrentHashMap<String, char[]> genome = new ConcurrentHashMap<String, char[]>();
+	
+	/*
+	 * Zeroes out all of the counts so the buffers can be filled by a new sample
+	 */
+	void reset()
+	{
+		for(AlleleCounts counts : cov.values())
+		{
+			Arrays.fill(counts.counts, 0);
+		}
+		for(IndelCounts contigIndels : indels.values())
+		{
+			contigIndels.clearAll();
+		}
+		for(char[] seq : genome.values())
+		{
+			Arrays.fill(seq, '\0');
+		}
+	}
+}
+
+/*
+ * The frequency and coverage thresholds which decide whether a position has a variant
+ */
+static class Thresholds
+{
+	int coverage;
+	double ref, alt, indel;
+}
+
+/*
+ * Gets the thresholds given on the command line
+ */
+static Thresholds defaultThresholds()
+{
+	Thresholds res = new Thresholds();
+	res.coverage = covThreshold;
+	res.ref = refThreshold;
+	res.alt = altThreshold;
+	res.indel = indelThreshold;
+	return res;
+}
+
+/*
+ * A possible variant at one position, along with the allele counts needed to output it
+ */
+static class Call
+{
+	int pos;
+	char refBase;
+	int refChar;
+	int alt;
+	String indelSeq;
+	int totalCov;
+	int altCount, altPositive, altNegative;
+	int totalPositive, totalNegative;
+	
+	// The counts of each allele on both strands, used for logging
+	String countString;
+}
+
+/*
+ * Finds the calls in a range of positions of a contig, splitting large ranges so they can be called in parallel
+ */
+static class CallRangeTask extends RecursiveTask<ArrayList<Call>>
+{
+	private static final long serialVersionUID = 1L;
+	
+	AlleleCounts counts;
+	char[] genome;
+	IndelCounts indels;
+	Thresholds thresholds;
+	int start, end;
+	
+	// The most positions to call without splitting the range
+	int grain;
+	
+	CallRangeTask(AlleleCounts counts, char[] genome, IndelCounts indels, Thresholds thresholds, int start, int end, int grain)
+	{
+		this.counts = counts;
+		this.genome = genome;
+		this.indels = indels;
+		this.thresholds = thresholds;
+		this.start = start;
+		this.end = end;
+		this.grain = grain;
+	}
+	
+	protected ArrayList<Call> compute()
+	{
+		if(end - start > grain)
+		{
+			int mid = (start + end) / 2;
+			CallRangeTask left = new CallRangeTask(counts, genome, indels, thresholds, start, mid, grain);
+			CallRangeTask right = new CallRangeTask(counts, genome, indels, thresholds, mid, end, grain);
+			left.fork();
+			ArrayList<Call> res = right.compute();
+			ArrayList<Call> leftCalls = left.join();
+			leftCalls.addAll(res);
+			return leftCalls;
+		}
+		ArrayList<Call> res = new ArrayList<Call>();
+		for(int i = start; i<end; i++)
+		{
+			Call call = evaluatePosition(i, genome[i], counts, indels, i, thresholds);
+			if(call != null)
+			{
+				res.add(call);
+			}
+		}
+		return res;
+	}
+}
+
 /*
  * Stores the chr/pos/ref/alt of a variant
  */
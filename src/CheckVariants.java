@@ -1,5 +1,3 @@
-import java.io.File;
-import java.io.FileInputStream;
 import java.util.HashMap;
 import java.util.Scanner;
 import java.util.TreeSet;
@@ -7,6 +5,7 @@ import java.util.TreeSet;
 public class CheckVariants {
 	static int maxLen = 31000;
 	static String samFn = "", genomeFn = "", vcfFn = "";
+	static String countsFn = "";
 	static int covThreshold = 20;
 	static double fnThreshold = .6;
 	static double fpThreshold = .4;
@@ -23,6 +22,8 @@ public class CheckVariants {
 		System.out.println("  sam_file    (String) - a SAM file with the alignments of the reads");
 		System.out.println("  vcf_file    (String) - a VCF file with the variant calls");
 		System.out.println("  genome_file (String) - a FASTA file with the reference genome");
+		System.out.println("  sam_file can be replaced by:");
+		System.out.println("  counts_file (String) - the binary allele counts saved by CallVariants");
 
 		System.out.println();
 		System.out.println("Optional args:");
@@ -30,6 +31,7 @@ public class CheckVariants {
 		System.out.println("  genome_max_len      (int)    [31000] - an upper bound on the genome length");
 		System.out.println("  missed_variant_freq (float)  [0.6]   - call a possible missed variant if ref allele frequency < this value (or wrong alt allele if its frequency < this value)");
 		System.out.println("  fp_freq             (float)  [0.4]   - call a false positive if ref allele frequency > this value");
+		Diagnostics.usage();
 
 		System.out.println();
 	}
@@ -63,6 +65,10 @@ public class CheckVariants {
 				{
 					genomeFn = val;
 				}
+				else if(key.equals("counts_file"))
+				{
+					countsFn = val;
+				}
 				else if(key.equals("coverage_threshold"))
 				{
 					covThreshold = Integer.parseInt(val);
@@ -79,9 +85,13 @@ public class CheckVariants {
 				{
 					fpThreshold = Double.parseDouble(val);
 				}
+				else
+				{
+					Diagnostics.parseArg(key, val);
+				}
 			}
 		}
-		if(samFn.length() == 0 || vcfFn.length() == 0 || genomeFn.length() == 0)
+		if((samFn.length() == 0 && countsFn.length() == 0) || vcfFn.length() == 0 || genomeFn.length() == 0)
 		{
 			usage();
 			System.exit(1);
@@ -94,7 +104,10 @@ public static void main(String[] args) throws Exception
 	// Read in variants 
 	System.err.println("Reading variants");
 	TreeSet<Variant> vars = new TreeSet<Variant>();
-	Scanner input = new Scanner(new FileInputStream(new File(vcfFn)));
+	
+	// The positions with variants on each contig, for checking every position quickly
+	HashMap<String, PositionSet> varPositions = new HashMap<String, PositionSet>();
+	Scanner input = new Scanner(CompressedFiles.open(vcfFn));
 	while(input.hasNext())
 	{
 		String line = input.nextLine();
@@ -104,13 +117,15 @@ public static void main(String[] args) throws Exception
 		}
 		
 		Variant v = new Variant(line);
-		if(vars.contains(v))
+		PositionSet positions = varPositions.computeIfAbsent(v.chr, k -> new PositionSet());
+		if(positions.contains(v.pos))
 		{
-			System.out.println("Multiple variants at position: " + v.chr + ":" + v.pos);
+			Diagnostics.log(Diagnostics.Level.WARN, "multiple_variants", v.chr, v.pos+1, "Multiple variants at position: " + v.chr + ":" + v.pos);
 		}
 		else
 		{
 			vars.add(v);
+			positions.add(v.pos);
 		}
 	}
 	input.close();
@@ -119,7 +134,7 @@ public static void main(String[] args) throws Exception
 	System.err.println("Reading genome");
 
 	HashMap<String, String> genome = new HashMap<String, String>();
-	input = new Scanner(new FileInputStream(new File(genomeFn)));
+	input = new Scanner(CompressedFiles.open(genomeFn));
 	
 	StringBuilder seq = new StringBuilder("");
 	String refName = "";
@@ -150,74 +165,83 @@ public static void main(String[] args) throws Exception
 	}
 	input.close();
 	
-	// Parse the cigar strings of read alignments and count up allele frequencies 
-	System.err.println("Counting coverage from alignments");
-	input = new Scanner(new FileInputStream(new File(samFn)));
-	HashMap<String, int[][]> cov = new HashMap<String, int[][]>();
-	while(input.hasNext())
+	HashMap<String, AlleleCounts> cov;
+	if(countsFn.length() > 0)
 	{
-		String line = input.nextLine();
-		if(line.startsWith("@"))
+		System.err.println("Loading allele counts");
+		cov = CountsFile.read(countsFn, null);
+	}
+	else
+	{
+		// Parse the cigar strings of read alignments and count up allele frequencies 
+		System.err.println("Counting coverage from alignments");
+		input = new Scanner(CompressedFiles.open(samFn));
+		cov = new HashMap<String, AlleleCounts>();
+		while(input.hasNext())
 		{
-			continue;
-		}
-		String[] tokens = line.split("\t");
+			String line = input.nextLine();
+			if(line.startsWith("@"))
+			{
+				continue;
+			}
+			String[] tokens = line.split("\t");
 		
-		String chrName = tokens[2];
-		if(!cov.containsKey(chrName))
-		{
-			cov.put(chrName, new int[maxLen][7]);
-		}
-		int[][] covArray = cov.get(chrName);
+			String chrName = tokens[2];
+			if(!cov.containsKey(chrName))
+			{
+				cov.put(chrName, new AlleleCounts(maxLen));
+			}
+			AlleleCounts covArray = cov.get(chrName);
 		
-		String cigar = tokens[5];
-		int n = cigar.length();
+			String cigar = tokens[5];
+			int n = cigar.length();
 		
-		String readSeq = tokens[9];
+			String readSeq = tokens[9];
 		
-		int refPos = Integer.parseInt(tokens[3]);
-		int queryPos = 0;
+			int refPos = Integer.parseInt(tokens[3]);
+			int queryPos = 0;
 		
-		int lenSoFar = 0;
-		for(int i = 0; i<n; i++)
-		{
-			char c = cigar.charAt(i);
-			if(c >= '0' && c <= '9')
-			{
-				lenSoFar = lenSoFar * 10 + (c - '0');
-			}
-			else
+			int lenSoFar = 0;
+			for(int i = 0; i<n; i++)
 			{
-				// deletion
-				if(consumesReference(c) && !consumesQuery(c))
+				char c = cigar.charAt(i);
+				if(c >= '0' && c <= '9')
 				{
-					for(int j = 0; j<lenSoFar; j++)
+					lenSoFar = lenSoFar * 10 + (c - '0');
+				}
+				else
+				{
+					// deletion
+					if(consumesReference(c) && !consumesQuery(c))
 					{
-						covArray[refPos + j - 1][6]++;
+						for(int j = 0; j<lenSoFar; j++)
+						{
+							covArray.increment(refPos + j - 1, 0, 6);
+						}
 					}
-				}
 				
-				// insertion
-				else if(consumesQuery(c) && !consumesReference(c))
-				{
-					covArray[refPos - 1][5]++;
-				}
-				else if(consumesQuery(c) && consumesReference(c))
-				{
-					for(int j = 0; j<lenSoFar; j++)
+					// insertion
+					else if(consumesQuery(c) && !consumesReference(c))
 					{
-						int charVal = charToInt(readSeq.charAt(queryPos + j));
-						covArray[refPos + j - 1][charVal]++;
+						covArray.increment(refPos - 1, 0, 5);
+					}
+					else if(consumesQuery(c) && consumesReference(c))
+					{
+						for(int j = 0; j<lenSoFar; j++)
+						{
+							int charVal = charToInt(readSeq.charAt(queryPos + j));
+							covArray.increment(refPos + j - 1, 0, charVal);
+						}
 					}
-				}
 				
-				if(consumesReference(c)) refPos += lenSoFar;
-				if(consumesQuery(c)) queryPos += lenSoFar;
-				lenSoFar = 0;
+					if(consumesReference(c)) refPos += lenSoFar;
+					if(consumesQuery(c)) queryPos += lenSoFar;
+					lenSoFar = 0;
+				}
 			}
 		}
+		input.close();
 	}
-	input.close();
 	
 	// Now go through every position and check consistency between allele frequencies and variant presence/absence
 	
@@ -226,26 +250,29 @@ public static void main(String[] args) throws Exception
 	// Loop over every ref contig
 	for(String s : cov.keySet())
 	{
-		// Get an array of allele frequencies for this contig
-		int[][] covArray = cov.get(s);
+		// Get the allele frequencies for this contig
+		AlleleCounts covArray = cov.get(s);
+		PositionSet positions = varPositions.getOrDefault(s, new PositionSet(0));
 		for(int i = 0; i<covArray.length; i++)
 		{
 			// Total coverage over this position only counting matches/mismatches
-			int totalCov = 0;
-			for(int j = 0; j<5; j++) totalCov += covArray[i][j];
+			int totalCov = covArray.total(i, 0, 0, 5);
 			
 			if(totalCov < covThreshold) continue;
 			
+			// Every check only leads to a warning
+			if(!Diagnostics.enabled(Diagnostics.Level.WARN)) continue;
+			
 			int refChar = charToInt(genome.get(s).charAt(i));
-			int refCov = covArray[i][refChar];
+			int refCov = covArray.get(i, 0, refChar);
 			
-			boolean hasVar = vars.contains(new Variant(s, i));
+			boolean hasVar = positions.contains(i);
 			
 			double refProp = 1.0 * refCov / totalCov;
 			
 			if(!hasVar && refProp < fnThreshold)
 			{
-				System.out.println("Possible missed variant at " + s + ":" + (i+1) + "; Ref allele = " + genome.get(s).charAt(i) + "; Ref proportion = " + String.format("%.3f", refProp) + "; Allele freqs = " + covToString(covArray[i]));
+				Diagnostics.log(Diagnostics.Level.WARN, "missed_variant", s, i+1, "Possible missed variant at " + s + ":" + (i+1) + "; Ref allele = " + genome.get(s).charAt(i) + "; Ref proportion = " + String.format("%.3f", refProp) + "; Allele freqs = " + covToString(covArray, i));
 			}
 			
 			if(hasVar)
@@ -254,23 +281,25 @@ public static void main(String[] args) throws Exception
 				int altChar = charToInt(alt);
 				if(refProp > fpThreshold) 
 				{
-					System.out.println("Possible false positive at " + s + ":" + (i+1) + "; Ref allele = " + genome.get(s).charAt(i) + "; Alt allele = " + alt + "; Ref proportion = " + String.format("%.3f", refProp) + "; Allele freqs = " + covToString(covArray[i]));
+					Diagnostics.log(Diagnostics.Level.WARN, "false_positive", s, i+1, "Possible false positive at " + s + ":" + (i+1) + "; Ref allele = " + genome.get(s).charAt(i) + "; Alt allele = " + alt + "; Ref proportion = " + String.format("%.3f", refProp) + "; Allele freqs = " + covToString(covArray, i));
 				}
-				else if(altChar < 4 && 1.0 * covArray[i][altChar] / totalCov < fnThreshold)
+				else if(altChar < 4 && 1.0 * covArray.get(i, 0, altChar) / totalCov < fnThreshold)
 				{
-					System.out.println("Possible wrong ALT at " + s + ":" + (i+1) + "; Alt allele = " + alt + "; Alt proportion = " + String.format("%.3f", 1.0 * covArray[i][altChar] / totalCov) + "; Allele freqs = " + covToString(covArray[i]));
+					Diagnostics.log(Diagnostics.Level.WARN, "wrong_alt", s, i+1, "Possible wrong ALT at " + s + ":" + (i+1) + "; Alt allele = " + alt + "; Alt proportion = " + String.format("%.3f", 1.0 * covArray.get(i, 0, altChar) / totalCov) + "; Allele freqs = " + covToString(covArray, i));
 				}
 			}
 		}
 	}
+	Diagnostics.close();
 }
 
 /*
  * Prints the coverage array of a position in a human-readable format
  */
-static String covToString(int[] cov)
+static String covToString(AlleleCounts cov, int pos)
 {
-	return String.format("A:%d, C:%d, G:%d, T:%d, N:%d, INS:%d, DEL:%d", cov[0], cov[1], cov[2], cov[3], cov[4], cov[5], cov[6]);
+	return String.format("A:%d, C:%d, G:%d, T:%d, N:%d, INS:%d, DEL:%d", cov.get(pos, 0, 0), cov.get(pos, 0, 1), cov.get(pos, 0, 2), 
+			cov.get(pos, 0, 3), cov.get(pos, 0, 4), cov.get(pos, 0, 5), cov.get(pos, 0, 6));
 }
 
 /*
@@ -0,0 +1,178 @@
+/*
+ * The codons of the CDS features in a GFF file, kept as one interval per CDS instead of one entry per codon
+ * Each contig is cut at every CDS boundary into segments which no CDS starts or ends inside, and each segment keeps
+ * the CDS covering it in primitive arrays, so the CDS at a position are found with one binary search over segments.
+ * Overlapping CDS in different reading frames, such as the two frames of a ribosomal frameshift, stay separate with
+ * their own codons.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Scanner;
+
+public class CodonIndex
+{
+	// The CDS intervals of each contig
+	HashMap<String, Intervals> byContig;
+
+	// Every CDS regardless of contig, used for contigs which the GFF does not name so they match every gene like they used to
+	Intervals all;
+
+	CodonIndex(String gffFn) throws Exception
+	{
+		HashMap<String, ArrayList<int[]>> lists = new HashMap<String, ArrayList<int[]>>();
+		ArrayList<int[]> allList = new ArrayList<int[]>();
+		Scanner input = new Scanner(CompressedFiles.open(gffFn));
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.startsWith("#"))
+			{
+				continue;
+			}
+			String[] tokens = line.split("\t");
+			if(tokens.length < 5 || !tokens[2].equals("CDS"))
+			{
+				continue;
+			}
+			int start = Integer.parseInt(tokens[3]);
+			int end = Integer.parseInt(tokens[4]);
+
+			if(end - start < 2)
+			{
+				continue;
+			}
+
+			// Only whole codons count, so the interval ends at the start of the last one
+			int[] cds = new int[] {start, start + (end - start - 2) / 3 * 3};
+			if(!lists.containsKey(tokens[0]))
+			{
+				lists.put(tokens[0], new ArrayList<int[]>());
+			}
+			lists.get(tokens[0]).add(cds);
+			allList.add(cds);
+		}
+		input.close();
+
+		byContig = new HashMap<String, Intervals>();
+		for(String chrom : lists.keySet())
+		{
+			byContig.put(chrom, new Intervals(lists.get(chrom)));
+		}
+		all = new Intervals(allList);
+	}
+
+	/*
+	 * Whether or not a single codon contains both positions, where first is not after last
+	 */
+	boolean sameCodon(String chrom, int first, int last)
+	{
+		Intervals intervals = byContig.get(chrom);
+		return (intervals == null ? all : intervals).sameCodon(first, last);
+	}
+
+	/*
+	 * The CDS intervals on one contig, indexed by the segments between their boundaries
+	 */
+	static class Intervals
+	{
+		// The first position and the start of the last whole codon of each CDS
+		int[] starts;
+		int[] lastCodons;
+
+		// Where each segment starts, sorted, with each segment running up to the start of the next
+		int[] segmentStarts;
+
+		// The CDS covering segment i are covering[coveringOffsets[i]] up to covering[coveringOffsets[i + 1]]
+		int[] coveringOffsets;
+		int[] covering;
+
+		Intervals(ArrayList<int[]> list)
+		{
+			int n = list.size();
+			starts = new int[n];
+			lastCodons = new int[n];
+
+			// Each CDS covers positions from its start through the end of its last codon
+			int[] bounds = new int[2 * n];
+			for(int i = 0; i<n; i++)
+			{
+				starts[i] = list.get(i)[0];
+				lastCodons[i] = list.get(i)[1];
+				bounds[2 * i] = starts[i];
+				bounds[2 * i + 1] = lastCodons[i] + 3;
+			}
+			Arrays.sort(bounds);
+			int numSegments = 0;
+			for(int i = 0; i<bounds.length; i++)
+			{
+				if(i == 0 || bounds[i] != bounds[i - 1])
+				{
+					bounds[numSegments++] = bounds[i];
+				}
+			}
+			segmentStarts = Arrays.copyOf(bounds, numSegments);
+
+			// Count the CDS covering each segment and then fill them in
+			coveringOffsets = new int[numSegments + 1];
+			for(int i = 0; i<n; i++)
+			{
+				for(int seg = segment(starts[i]); segmentStarts[seg] <= lastCodons[i] + 2; seg++)
+				{
+					coveringOffsets[seg + 1]++;
+				}
+			}
+			for(int seg = 0; seg<numSegments; seg++)
+			{
+				coveringOffsets[seg + 1] += coveringOffsets[seg];
+			}
+			covering = new int[coveringOffsets[numSegments]];
+			int[] filled = Arrays.copyOf(coveringOffsets, numSegments);
+			for(int i = 0; i<n; i++)
+			{
+				for(int seg = segment(starts[i]); segmentStarts[seg] <= lastCodons[i] + 2; seg++)
+				{
+					covering[filled[seg]++] = i;
+				}
+			}
+		}
+
+		/*
+		 * Gets the segment containing a position, or -1 if it is before every segment
+		 */
+		int segment(int pos)
+		{
+			int idx = Arrays.binarySearch(segmentStarts, pos);
+			return idx >= 0 ? idx : -idx - 2;
+		}
+
+		/*
+		 * Whether or not a codon of any CDS contains both positions, where first is not after last
+		 */
+		boolean sameCodon(int first, int last)
+		{
+			if(last - first > 2)
+			{
+				return false;
+			}
+			int seg = segment(first);
+			if(seg < 0 || seg == segmentStarts.length - 1)
+			{
+				return false;
+			}
+			for(int j = coveringOffsets[seg]; j<coveringOffsets[seg + 1]; j++)
+			{
+				int i = covering[j];
+
+				// The codon of this CDS's frame which contains the first position
+				int codon = starts[i] + (first - starts[i]) / 3 * 3;
+				if(codon <= lastCodons[i] && last <= codon + 2)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
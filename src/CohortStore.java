@@ -0,0 +1,140 @@
+/*
+ * Saves the merged variants of a cohort so MergeVariants can add new samples to it without reading the old ones again
+ * The store holds the list of VCFs merged so far, in sample order, and then every merged variant: its eight VCF columns
+ * before SUPP_VEC and SUPP are added, the fields of the key it was merged under, and its SupportSet.  Since merging
+ * is associative, merging the new files into the stored variants gives the same result as merging every file at once.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class CohortStore
+{
+	static final byte[] MAGIC = "VVCOHRT1".getBytes(StandardCharsets.US_ASCII);
+
+	// The VCFs which have been merged, where the index of each one is its sample number
+	ArrayList<String> files;
+
+	HashMap<VariantKey, VcfEntry> vars;
+
+	CohortStore()
+	{
+		files = new ArrayList<String>();
+		vars = new HashMap<VariantKey, VcfEntry>();
+	}
+
+	/*
+	 * Loads a store, or returns an empty one if the file does not exist yet
+	 */
+	static CohortStore load(String fn) throws Exception
+	{
+		CohortStore res = new CohortStore();
+		if(!new File(fn).exists())
+		{
+			return res;
+		}
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(fn), CompressedFiles.BUFFER_SIZE));
+		byte[] magic = new byte[MAGIC.length];
+		if(input.readNBytes(magic, 0, magic.length) < MAGIC.length || !Arrays.equals(magic, MAGIC))
+		{
+			input.close();
+			throw new Exception(fn + " is not a cohort store");
+		}
+		int numFiles = input.readInt();
+		for(int i = 0; i<numFiles; i++)
+		{
+			res.files.add(readString(input));
+		}
+		int numVars = input.readInt();
+		StringBuilder line = new StringBuilder();
+		for(int i = 0; i<numVars; i++)
+		{
+			line.setLength(0);
+			for(int j = 0; j<8; j++)
+			{
+				if(j > 0)
+				{
+					line.append('\t');
+				}
+				line.append(readString(input));
+			}
+			VcfEntry entry = new VcfEntry(line.toString());
+			int keyPos = input.readInt();
+			int deletionLength = input.readInt();
+			if(deletionLength > 0)
+			{
+				// Deletions are keyed by their length alone, so any alleles with that difference give the same key
+				entry.key = new VariantKey(entry.getChromosome(), keyPos, "N".repeat(deletionLength), "");
+			}
+			else
+			{
+				String keyRef = readString(input);
+				entry.key = new VariantKey(entry.getChromosome(), keyPos, keyRef, readString(input));
+			}
+			entry.support = SupportSet.read(input, numFiles);
+			res.vars.put(entry.key, entry);
+		}
+		input.close();
+		return res;
+	}
+
+	/*
+	 * Writes the store to a temporary file and then moves it into place, so an interrupted update leaves the old store intact
+	 */
+	void save(String fn) throws Exception
+	{
+		File tmp = new File(fn + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), CompressedFiles.BUFFER_SIZE));
+		out.write(MAGIC);
+		out.writeInt(files.size());
+		for(String file : files)
+		{
+			writeString(out, file);
+		}
+		out.writeInt(vars.size());
+		for(VcfEntry entry : vars.values())
+		{
+			for(int j = 0; j<8; j++)
+			{
+				writeString(out, entry.get(j));
+			}
+			VariantKey key = entry.key;
+			out.writeInt(key.pos);
+			out.writeInt(key.deletionLength);
+			if(key.deletionLength == 0)
+			{
+				writeString(out, key.ref);
+				writeString(out, key.alt);
+			}
+			entry.support.write(out);
+		}
+		out.close();
+		Files.move(tmp.toPath(), new File(fn).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws Exception
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream input) throws Exception
+	{
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
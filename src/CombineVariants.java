@@ -1,12 +1,9 @@
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Scanner;
-import java.util.TreeSet;
 
 public class CombineVariants
 {
@@ -14,8 +11,11 @@ public class CombineVariants
 	static String gffFn = "", genomeFn = "";
 	static boolean usingGenes = false;
 	
+	// Whether to combine variants as they are read, which needs the input to be sorted like MergeVariants output
+	static boolean streaming = false;
+	
 	// These are used when incorporating gene annotations
-	static TreeSet<Integer> orfStarts;
+	static CodonIndex codons;
 	static HashMap<String, String> genome;
 	
 	static void usage()
@@ -30,6 +30,7 @@ public class CombineVariants
 		System.out.println("Optional args:");
 		System.out.println("  gene_file   (String) - gff file containing genes: only groups variants together if they are in the same CDS reading frame");
 		System.out.println("  genome_file (String) - path to genome, required if using a gene file");
+		System.out.println("  streaming   (boolean) - combine variants while reading them instead of sorting them all first, which needs a sorted input");
 		System.out.println();
 	}
 	
@@ -50,6 +51,7 @@ public class CombineVariants
 				else if(key.equalsIgnoreCase("out_file")) { ofn = val; } 
 				else if(key.equalsIgnoreCase("gene_file")) { gffFn = val; usingGenes = true; } 
 				else if(key.equals("genome_file")) { genomeFn = val; }
+				else if(key.equalsIgnoreCase("streaming")) { streaming = Boolean.parseBoolean(val); }
 			}
 		}
 		
@@ -69,10 +71,13 @@ public class CombineVariants
 	public static void main(String[] args) throws Exception
 	{
 		parseArgs(args);
-		Scanner input = new Scanner(new FileInputStream(new File(vcfFn)));
-		PrintWriter out = new PrintWriter(new File(ofn));
+		loadGenes();
+		
+		Scanner input = new Scanner(CompressedFiles.open(vcfFn));
+		PrintWriter out = new PrintWriter(CompressedFiles.create(ofn));
 		
 		ArrayList<VcfEntry> allEntries = new ArrayList<VcfEntry>();
+		VcfEntry last = null;
 		while(input.hasNext())
 		{
 			String line = input.nextLine();
@@ -84,40 +89,49 @@ public class CombineVariants
 			
 			VcfEntry entry = new VcfEntry(line);
 			
-			allEntries.add(entry);
+			if(!streaming)
+			{
+				allEntries.add(entry);
+				continue;
+			}
+			
+			// Each entry is combined as soon as it is read, so they have to come in the order they would be sorted in
+			if(last != null && entry.compareTo(last) < 0)
+			{
+				throw new Exception(vcfFn + " is not sorted for streaming: " + entry.getChromosome() + ":" + entry.getPos()
+					+ " comes after " + last.getChromosome() + ":" + last.getPos());
+			}
+			last = entry;
+			add(entry, out);
 		}
 		
 		Collections.sort(allEntries);
+		for(VcfEntry entry : allEntries)
+		{
+			add(entry, out);
+		}
 		
-		orfStarts = new TreeSet<Integer>();
+		if(currentEntries.size() > 0)
+		{
+			processAdjacentVariants(currentEntries, out);
+		}
+		input.close();
+		out.close();
+	}
+	
+	/*
+	 * Reads the CDS reading frames and the genome if a gene file is being used
+	 */
+	static void loadGenes() throws Exception
+	{
 		genome = new HashMap<String, String>();
 
 		if(usingGenes)
 		{
-			Scanner geneInput = new Scanner(new FileInputStream(new File(gffFn)));
-			while(geneInput.hasNext())
-			{
-				String line = geneInput.nextLine();
-				if(line.startsWith("#"))
-				{
-					continue;
-				}
-				String[] tokens = line.split("\t");
-				if(tokens.length < 5 || !tokens[2].equals("CDS"))
-				{
-					continue;
-				}
-				int start = Integer.parseInt(tokens[3]);
-				int end = Integer.parseInt(tokens[4]);
-				for(int i = start; i+2 <= end; i+=3)
-				{
-					orfStarts.add(i);
-				}
-			}
-			geneInput.close();
+			codons = new CodonIndex(gffFn);
 			
 			// Read in genome
-			Scanner genomeInput = new Scanner(new FileInputStream(new File(genomeFn)));
+			Scanner genomeInput = new Scanner(CompressedFiles.open(genomeFn));
 			
 			StringBuilder seq = new StringBuilder("");
 			String refName = "";
@@ -148,97 +162,72 @@ public class CombineVariants
 			}
 			genomeInput.close();
 		}
-				
-		// The current run of adjacent SNPs
-		ArrayList<VcfEntry> currentEntries = new ArrayList<VcfEntry>();
+	}
+	
+	// The current run of adjacent SNPs
+	static ArrayList<VcfEntry> currentEntries = new ArrayList<VcfEntry>();
+	
+	// Indels which occurred somewhere in the middle of the current run and need to be output afterwards
+	static ArrayList<VcfEntry> pendingEntries = new ArrayList<VcfEntry>();
+	
+	/*
+	 * Adds the next variant in sorted order, outputting the current run of SNPs and anything waiting on it once it ends
+	 */
+	static void add(VcfEntry entry, PrintWriter out) throws Exception
+	{
+		boolean isSnp = entry.getRef().length() == 1 && entry.getAlt().length() == 1;
+		int pos = entry.getPos();
 		
-		// Indels which occurred somewhere in the middle of the current run and need to be output afterwards
-		ArrayList<VcfEntry> pendingEntries = new ArrayList<VcfEntry>();
-		for(VcfEntry entry : allEntries)
+		boolean isAdjacent = currentEntries.size() > 0 && currentEntries.get(currentEntries.size()-1).getPos() + 1 >= pos;
+		
+		if(usingGenes)
 		{
-			boolean isSnp = entry.getRef().length() == 1 && entry.getAlt().length() == 1;
-			
-			boolean isAdjacent = currentEntries.size() > 0 && currentEntries.get(currentEntries.size()-1).getPos() + 1 >= entry.getPos();
-			
-			if(usingGenes)
+			// The run can only grow while one codon in some CDS frame covers all of it
+			VcfEntry first = currentEntries.size() == 0 ? null : currentEntries.get(0);
+			isAdjacent = first != null && first.getChromosome().equals(entry.getChromosome())
+				&& codons.sameCodon(entry.getChromosome(), first.getPos(), pos);
+		}
+		
+		if(isSnp && (currentEntries.size() == 0 || isAdjacent))
+		{
+			currentEntries.add(entry);
+		}
+		
+		else
+		{
+			if(currentEntries.size() > 0 && !isAdjacent)
 			{
-				isAdjacent = true;
-				if(currentEntries.size() == 0)
+				processAdjacentVariants(currentEntries, out);
+				currentEntries = new ArrayList<VcfEntry>();
+				
+				for(VcfEntry e : pendingEntries)
+				{
+					out.println(e);
+				}
+				pendingEntries = new ArrayList<VcfEntry>();
+				
+				if(isSnp)
 				{
-					isAdjacent = false;
+					currentEntries.add(entry);
 				}
 				else
 				{
-					Integer currentOrfStart = orfStarts.floor(currentEntries.get(0).getPos());
-					Integer newOrfStart = orfStarts.floor(entry.getPos());
-					
-					if(currentOrfStart == null || newOrfStart == null)
-					{
-						isAdjacent = false;
-					}
-					else if(currentOrfStart + 2 < orfStarts.floor(currentEntries.get(0).getPos()))
-					{
-						isAdjacent = false;
-					}
-					else if(newOrfStart + 2 < entry.getPos())
-					{
-						isAdjacent = false;
-					}
-					else if(currentOrfStart != newOrfStart)
-					{
-						isAdjacent = false;
-					}
+					out.println(entry);
 				}
 			}
-			
-			if(isSnp && (currentEntries.size() == 0 || isAdjacent))
+			else if(currentEntries.size() > 0)
+			{
+				pendingEntries.add(entry);
+			}
+			else if(isSnp)
 			{
 				currentEntries.add(entry);
 			}
-			
 			else
 			{
-				if(currentEntries.size() > 0 && !isAdjacent)
-				{
-					processAdjacentVariants(currentEntries, out);
-					currentEntries = new ArrayList<VcfEntry>();
-					
-					for(VcfEntry e : pendingEntries)
-					{
-						out.println(e);
-					}
-					pendingEntries = new ArrayList<VcfEntry>();
-					
-					if(isSnp)
-					{
-						currentEntries.add(entry);
-					}
-					else
-					{
-						out.println(entry);
-					}
-				}
-				else if(currentEntries.size() > 0)
-				{
-					pendingEntries.add(entry);
-				}
-				else if(isSnp)
-				{
-					currentEntries.add(entry);
-				}
-				else
-				{
-					out.println(entry);
-				}
+				out.println(entry);
 			}
 		}
-		
-		if(currentEntries.size() > 0)
-		{
-			processAdjacentVariants(currentEntries, out);
-		}
-		input.close();
-		out.close();
 	}
 	
 	/*
@@ -288,7 +277,7 @@ public class CombineVariants
 				}
 			}
 			
-			VcfEntry copy = new VcfEntry(entries.get(0).originalLine);
+			VcfEntry copy = entries.get(0).copyOriginal();
 			copy.setRef(new String(refs));
 			copy.setAlt(new String(alt));
 			out.println(copy);
@@ -338,7 +327,7 @@ public class CombineVariants
 		// Create new entries
 		for(String s : altMap.keySet())
 		{
-			VcfEntry copy = new VcfEntry(entries.get(0).originalLine);
+			VcfEntry copy = entries.get(0).copyOriginal();
 			copy.setRef(new String(refs));
 			copy.setAlt(s);
 			
@@ -0,0 +1,280 @@
+/*
+ * Opens input files whether or not they are compressed, and creates output files which are
+ * BGZF-compressed when their names end in .gz
+ * Compressed input is recognized by the gzip magic number, and since BGZF is a series of gzip members,
+ * files from bgzip and from plain gzip can both be read.  Compressed output is split into independent
+ * BGZF blocks which are deflated in parallel by a shared pool of threads and written in order.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class CompressedFiles
+{
+	static final int GZIP_MAGIC_1 = 0x1f;
+	static final int GZIP_MAGIC_2 = 0x8b;
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	// Threads shared by all compressed outputs, created the first time one is opened
+	static ExecutorService compressionPool;
+
+	/*
+	 * Whether or not a file starts with the gzip magic number
+	 */
+	static boolean isCompressed(String fn) throws Exception
+	{
+		if(fn.equals("-"))
+		{
+			return false;
+		}
+		FileInputStream input = new FileInputStream(new File(fn));
+		int first = input.read();
+		int second = input.read();
+		input.close();
+		return first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2;
+	}
+
+	/*
+	 * Opens a file for reading, decompressing it if it is gzipped or BGZF-compressed
+	 * The filename "-" means standard input, which may also be compressed.
+	 */
+	static InputStream open(String fn) throws Exception
+	{
+		return open(fn, BUFFER_SIZE);
+	}
+
+	/*
+	 * Opens a file for reading with a given amount of buffering, for when many files are open at once
+	 */
+	static InputStream open(String fn, int bufferSize) throws Exception
+	{
+		InputStream raw = fn.equals("-") ? System.in : new FileInputStream(new File(fn));
+		BufferedInputStream input = new BufferedInputStream(raw, bufferSize);
+		input.mark(2);
+		int first = input.read();
+		int second = input.read();
+		input.reset();
+		if(first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2)
+		{
+			return new BufferedInputStream(new GZIPInputStream(input, bufferSize), bufferSize);
+		}
+		return input;
+	}
+
+	/*
+	 * Whether or not an output file should be compressed based on its name
+	 */
+	static boolean compressedName(String fn)
+	{
+		return fn.endsWith(".gz") || fn.endsWith(".bgz");
+	}
+
+	/*
+	 * Creates a file for writing, which is BGZF-compressed if its name ends in .gz
+	 */
+	static OutputStream create(String fn) throws Exception
+	{
+		if(compressedName(fn))
+		{
+			return new BgzfOutputStream(new FileOutputStream(new File(fn)));
+		}
+		return new BufferedOutputStream(new FileOutputStream(new File(fn)), BUFFER_SIZE);
+	}
+
+	static synchronized ExecutorService compressionPool()
+	{
+		if(compressionPool == null)
+		{
+			compressionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r ->
+			{
+				Thread t = new Thread(r, "bgzf");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return compressionPool;
+	}
+
+	/*
+	 * Writes data as a series of BGZF blocks, compressing several blocks at once
+	 */
+	static class BgzfOutputStream extends OutputStream
+	{
+		// The most uncompressed data in one block, the same as bgzip uses
+		static final int BLOCK_SIZE = 0xff00;
+
+		static final int HEADER_SIZE = 18;
+		static final int FOOTER_SIZE = 8;
+
+		// The empty block which marks the end of a BGZF file
+		static final byte[] EOF_BLOCK = {
+			0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 0x42, 0x43, 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+		};
+
+		// Each compressing thread reuses its own deflater and output space
+		static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+		static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[2 * BLOCK_SIZE]);
+
+		OutputStream out;
+		ExecutorService pool;
+
+		// Blocks which have been sent off to compress, in the order they need to be written
+		ArrayDeque<Future<byte[]>> pending;
+
+		// The most blocks which can be compressing at once before waiting for the oldest one
+		int maxPending;
+
+		// The uncompressed data for the block being filled
+		byte[] block;
+		int size;
+
+		boolean closed;
+
+		BgzfOutputStream(OutputStream out)
+		{
+			this.out = out;
+			pool = compressionPool();
+			pending = new ArrayDeque<Future<byte[]>>();
+			maxPending = 2 * Runtime.getRuntime().availableProcessors();
+			block = new byte[BLOCK_SIZE];
+		}
+
+		public void write(int b) throws IOException
+		{
+			if(size == BLOCK_SIZE)
+			{
+				submitBlock();
+			}
+			block[size++] = (byte)b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while(len > 0)
+			{
+				if(size == BLOCK_SIZE)
+				{
+					submitBlock();
+				}
+				int copy = Math.min(len, BLOCK_SIZE - size);
+				System.arraycopy(b, off, block, size, copy);
+				size += copy;
+				off += copy;
+				len -= copy;
+			}
+		}
+
+		/*
+		 * Sends the current block to be compressed, first writing out finished blocks if too many are waiting
+		 */
+		void submitBlock() throws IOException
+		{
+			if(size == 0)
+			{
+				return;
+			}
+			byte[] data = block;
+			int length = size;
+			pending.add(pool.submit(() -> compress(data, length)));
+			block = new byte[BLOCK_SIZE];
+			size = 0;
+			while(pending.size() > maxPending)
+			{
+				writeOldest();
+			}
+		}
+
+		void writeOldest() throws IOException
+		{
+			try
+			{
+				out.write(pending.poll().get());
+			}
+			catch(Exception e)
+			{
+				throw new IOException("Failed to compress BGZF block", e);
+			}
+		}
+
+		/*
+		 * Compresses the first length bytes of data into a complete BGZF block
+		 */
+		static byte[] compress(byte[] data, int length)
+		{
+			Deflater deflater = DEFLATERS.get();
+			byte[] scratch = SCRATCH.get();
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int compressedSize = 0;
+			while(!deflater.finished())
+			{
+				compressedSize += deflater.deflate(scratch, compressedSize, scratch.length - compressedSize);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+
+			int blockSize = HEADER_SIZE + compressedSize + FOOTER_SIZE;
+			byte[] res = new byte[blockSize];
+			res[0] = 0x1f;
+			res[1] = (byte)0x8b;
+			res[2] = 8;
+			res[3] = 4;
+			res[9] = (byte)0xff;
+			res[10] = 6;
+			res[12] = 'B';
+			res[13] = 'C';
+			res[14] = 2;
+			putShort(res, 16, blockSize - 1);
+			System.arraycopy(scratch, 0, res, HEADER_SIZE, compressedSize);
+			putInt(res, HEADER_SIZE + compressedSize, crc.getValue());
+			putInt(res, HEADER_SIZE + compressedSize + 4, length);
+			return res;
+		}
+
+		static void putShort(byte[] bytes, int offset, int value)
+		{
+			bytes[offset] = (byte)value;
+			bytes[offset + 1] = (byte)(value >> 8);
+		}
+
+		static void putInt(byte[] bytes, int offset, long value)
+		{
+			for(int i = 0; i<4; i++)
+			{
+				bytes[offset + i] = (byte)(value >> (8 * i));
+			}
+		}
+
+		public void close() throws IOException
+		{
+			if(closed)
+			{
+				return;
+			}
+			closed = true;
+			submitBlock();
+			while(!pending.isEmpty())
+			{
+				writeOldest();
+			}
+			out.write(EOF_BLOCK);
+			out.close();
+		}
+	}
+}
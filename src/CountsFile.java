@@ -0,0 +1,201 @@
+/*
+ * Saves and loads the allele counts of every contig in a binary file, so a pileup only needs to be parsed once
+ * The file starts with a magic string, the number of contigs, and then the name and length of each contig.
+ * After that comes the count matrix of each contig in the same order, with AlleleCounts.STRIDE little-endian
+ * ints per position laid out the same way as in memory, so loading is a bulk copy from the mapped file.
+ * Each contig is mapped in windows, so neither the file nor a contig is limited to the 2 GB one mapping can cover.
+ */
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CountsFile
+{
+	static final byte[] MAGIC = "VVCOUNT1".getBytes(StandardCharsets.US_ASCII);
+
+	// How many positions are converted to bytes at once when writing
+	static final int WRITE_POSITIONS = 1 << 14;
+
+	// The most ints mapped into memory at once when reading
+	static final int MAP_WINDOW_INTS = 1 << 28;
+
+	/*
+	 * Whether or not a file starts with the magic string of a counts file
+	 */
+	static boolean isCountsFile(String fn) throws Exception
+	{
+		FileInputStream input = new FileInputStream(fn);
+		byte[] start = new byte[MAGIC.length];
+		int read = input.readNBytes(start, 0, start.length);
+		input.close();
+		if(read < MAGIC.length)
+		{
+			return false;
+		}
+		for(int i = 0; i<MAGIC.length; i++)
+		{
+			if(start[i] != MAGIC[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Writes the counts of the given contigs in the order they are listed
+	 */
+	static void write(String fn, ArrayList<String> contigs, Map<String, AlleleCounts> cov) throws Exception
+	{
+		FileOutputStream stream = new FileOutputStream(fn);
+		FileChannel channel = stream.getChannel();
+
+		// Contig dictionary
+		byte[][] names = new byte[contigs.size()][];
+		int headerSize = MAGIC.length + 4;
+		for(int i = 0; i<names.length; i++)
+		{
+			names[i] = contigs.get(i).getBytes(StandardCharsets.UTF_8);
+			headerSize += 8 + names[i].length;
+		}
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(names.length);
+		for(int i = 0; i<names.length; i++)
+		{
+			header.putInt(names[i].length);
+			header.put(names[i]);
+			header.putInt(cov.get(contigs.get(i)).length);
+		}
+		header.flip();
+		writeFully(channel, header);
+
+		// Count matrices
+		ByteBuffer buf = ByteBuffer.allocate(WRITE_POSITIONS * AlleleCounts.STRIDE * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for(String s : contigs)
+		{
+			int[] counts = cov.get(s).counts;
+			for(int start = 0; start<counts.length; start += WRITE_POSITIONS * AlleleCounts.STRIDE)
+			{
+				int length = Math.min(WRITE_POSITIONS * AlleleCounts.STRIDE, counts.length - start);
+				buf.clear();
+				buf.asIntBuffer().put(counts, start, length);
+				buf.limit(length * 4);
+				writeFully(channel, buf);
+			}
+		}
+		channel.close();
+		stream.close();
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buf) throws Exception
+	{
+		while(buf.hasRemaining())
+		{
+			channel.write(buf);
+		}
+	}
+
+	/*
+	 * Reads exactly length bytes into the start of a buffer, which is left ready to be read from
+	 * Returns false if the file ends first.
+	 */
+	static boolean readFully(FileChannel channel, ByteBuffer buf, int length) throws Exception
+	{
+		buf.clear();
+		buf.limit(length);
+		while(buf.hasRemaining())
+		{
+			if(channel.read(buf) == -1)
+			{
+				return false;
+			}
+		}
+		buf.flip();
+		return true;
+	}
+
+	/*
+	 * Loads the counts of every contig from a counts file
+	 * If contigs is not null, the contig names are added to it in the order they were written
+	 */
+	static HashMap<String, AlleleCounts> read(String fn, ArrayList<String> contigs) throws Exception
+	{
+		FileInputStream stream = new FileInputStream(fn);
+		FileChannel channel = stream.getChannel();
+
+		// The header is read through a small buffer, and then the count matrices are mapped
+		ByteBuffer buf = ByteBuffer.allocate(MAGIC.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+
+		boolean valid = readFully(channel, buf, MAGIC.length + 4);
+		for(int i = 0; valid && i<MAGIC.length; i++)
+		{
+			valid = buf.get() == MAGIC[i];
+		}
+		if(!valid)
+		{
+			channel.close();
+			stream.close();
+			throw new Exception(fn + " is not an allele counts file");
+		}
+
+		int numContigs = buf.getInt();
+		String[] names = new String[numContigs];
+		int[] lengths = new int[numContigs];
+		for(int i = 0; i<numContigs; i++)
+		{
+			ByteBuffer name = null;
+			boolean complete = readFully(channel, buf, 4);
+			if(complete)
+			{
+				name = ByteBuffer.allocate(buf.getInt());
+				complete = readFully(channel, name, name.capacity()) && readFully(channel, buf, 4);
+			}
+			if(!complete)
+			{
+				channel.close();
+				stream.close();
+				throw new Exception("Allele counts file " + fn + " is truncated in its list of contigs");
+			}
+			names[i] = new String(name.array(), StandardCharsets.UTF_8);
+			lengths[i] = buf.getInt();
+		}
+
+		// The count matrices start right after the contig list
+		long offset = channel.position();
+		HashMap<String, AlleleCounts> res = new HashMap<String, AlleleCounts>();
+		for(int i = 0; i<numContigs; i++)
+		{
+			AlleleCounts counts = new AlleleCounts(lengths[i]);
+			int[] values = counts.counts;
+			if(offset + 4L * values.length > channel.size())
+			{
+				channel.close();
+				stream.close();
+				throw new Exception("Allele counts file " + fn + " is truncated in contig " + names[i]);
+			}
+			for(int start = 0; start<values.length; start += MAP_WINDOW_INTS)
+			{
+				int length = Math.min(MAP_WINDOW_INTS, values.length - start);
+				channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, start, length);
+				offset += 4L * length;
+			}
+			res.put(names[i], counts);
+			if(contigs != null)
+			{
+				contigs.add(names[i]);
+			}
+		}
+
+		channel.close();
+		stream.close();
+		return res;
+	}
+}
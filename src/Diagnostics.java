@@ -0,0 +1,296 @@
+/*
+ * A channel for the diagnostic messages about individual positions, which are printed by a background thread
+ * so the calling code never waits on the console
+ * Each event has a level and a category.  Events above the chosen level are dropped before their message is built,
+ * and each category can be capped at a maximum number of printed events over the whole run or sampled to every
+ * n-th one.  If the writer falls behind and its queue fills up, new events are dropped and counted rather than
+ * making the caller wait.
+ * Every event at the chosen level can also be written to a machine-readable file, as JSON lines if its name
+ * ends in .jsonl and otherwise as a TSV table.
+ */
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Diagnostics
+{
+	enum Level { ERROR, WARN, INFO, DEBUG }
+
+	// The most events which can wait to be written before new ones are dropped
+	static final int QUEUE_SIZE = 1 << 16;
+
+	// The least important level which is still logged
+	static Level level = Level.INFO;
+
+	// The most events of each category printed to the console over the whole run, or -1 for no maximum
+	static long maxCount = -1;
+
+	// Only print every n-th event of each category to the console
+	static long sample = 1;
+
+	// The file which every logged event is also written to, or empty for none
+	static String sinkFn = "";
+
+	static PrintStream console = System.out;
+	static PrintWriter sink;
+	static boolean json;
+
+	static BlockingQueue<Event> queue;
+	static Thread writer;
+
+	// The number of events logged and printed so far in each category
+	static ConcurrentHashMap<String, AtomicLong> seen = new ConcurrentHashMap<String, AtomicLong>();
+	static ConcurrentHashMap<String, AtomicLong> printed = new ConcurrentHashMap<String, AtomicLong>();
+
+	// The number of events in each category which were dropped because the queue was full
+	static ConcurrentHashMap<String, AtomicLong> dropped = new ConcurrentHashMap<String, AtomicLong>();
+
+	// Marks the end of the events so the writer thread can stop
+	static final Event END = new Event(null, null, null, 0, null);
+
+	/*
+	 * Handles a diagnostics argument, returning false if the key is not one of them
+	 */
+	static boolean parseArg(String key, String val)
+	{
+		if(key.equals("log_level"))
+		{
+			level = Level.valueOf(val.toUpperCase());
+		}
+		else if(key.equals("log_max_count"))
+		{
+			maxCount = Long.parseLong(val);
+		}
+		else if(key.equals("log_sample"))
+		{
+			sample = Math.max(Long.parseLong(val), 1);
+		}
+		else if(key.equals("log_file"))
+		{
+			sinkFn = val;
+		}
+		else
+		{
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Prints the usage lines for the diagnostics arguments
+	 */
+	static void usage()
+	{
+		System.out.println("  log_level           (String) [info]  - the least important diagnostics to log: error, warn, info, or debug");
+		System.out.println("  log_max_count       (int)    [-1]    - the most diagnostics of each category to print over the whole run, or -1 for no maximum");
+		System.out.println("  log_sample          (int)    [1]     - only print every n-th diagnostic of each category");
+		System.out.println("  log_file            (String) []      - also write every logged diagnostic to this file, as JSON lines if it ends in .jsonl or else as a TSV table");
+	}
+
+	/*
+	 * Whether or not an event with the given level would be logged, so the caller can skip building its message
+	 */
+	static boolean enabled(Level eventLevel)
+	{
+		return eventLevel.compareTo(level) <= 0;
+	}
+
+	/*
+	 * Logs an event about a 1-based position of a contig, or with a null contig if it is not about a position
+	 */
+	static void log(Level eventLevel, String category, String chrom, int pos, String message) throws Exception
+	{
+		if(!enabled(eventLevel))
+		{
+			return;
+		}
+		long count = seen.computeIfAbsent(category, k -> new AtomicLong()).incrementAndGet();
+		boolean print = false;
+		if((count - 1) % sample == 0)
+		{
+			// Only counts the event as printed while the category is under its limit
+			AtomicLong shown = printed.computeIfAbsent(category, k -> new AtomicLong());
+			long before = shown.getAndUpdate(x -> maxCount < 0 || x < maxCount ? x + 1 : x);
+			print = maxCount < 0 || before < maxCount;
+		}
+		if(!print && sinkFn.length() == 0)
+		{
+			return;
+		}
+		Event event = new Event(eventLevel, category, chrom, pos, message);
+		event.print = print;
+		if(!start().offer(event))
+		{
+			// Never wait on the writer; the event is counted instead so the loss is reported at the end
+			dropped.computeIfAbsent(category, k -> new AtomicLong()).incrementAndGet();
+			if(print)
+			{
+				printed.get(category).decrementAndGet();
+			}
+		}
+	}
+
+	/*
+	 * Starts the writer thread the first time an event is logged
+	 */
+	static synchronized BlockingQueue<Event> start() throws Exception
+	{
+		if(queue != null)
+		{
+			return queue;
+		}
+		if(sinkFn.length() > 0)
+		{
+			json = sinkFn.endsWith(".jsonl");
+			sink = new PrintWriter(CompressedFiles.create(sinkFn));
+			if(!json)
+			{
+				sink.println("level\tcategory\tchrom\tpos\tmessage");
+			}
+		}
+		queue = new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+		writer = new Thread(Diagnostics::drain, "diagnostics");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Make sure everything is written even if the program exits early
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			try
+			{
+				close();
+			}
+			catch(Exception e)
+			{
+			}
+		}));
+		return queue;
+	}
+
+	/*
+	 * Writes out events as they arrive until the end marker is reached
+	 */
+	static void drain()
+	{
+		try
+		{
+			while(true)
+			{
+				Event event = queue.take();
+				if(event == END)
+				{
+					break;
+				}
+				if(event.print)
+				{
+					console.println(event.message);
+				}
+				if(sink != null)
+				{
+					sink.println(json ? event.toJson() : event.toTsv());
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+		console.flush();
+	}
+
+	/*
+	 * Waits for all logged events to be written, and reports how many of each category were left off the console
+	 */
+	static synchronized void close() throws Exception
+	{
+		if(writer == null)
+		{
+			return;
+		}
+		queue.put(END);
+		writer.join();
+		writer = null;
+		if(sink != null)
+		{
+			sink.close();
+		}
+
+		TreeMap<String, Long> suppressed = new TreeMap<String, Long>();
+		for(String category : seen.keySet())
+		{
+			AtomicLong shown = printed.get(category), lost = dropped.get(category);
+			long count = seen.get(category).get() - (shown == null ? 0 : shown.get()) - (lost == null ? 0 : lost.get());
+			if(count > 0)
+			{
+				suppressed.put(category, count);
+			}
+		}
+		for(String category : suppressed.keySet())
+		{
+			System.err.println("Did not print " + suppressed.get(category) + " " + category + " diagnostics"
+				+ (sinkFn.length() > 0 ? " (all are in " + sinkFn + ")" : ""));
+		}
+		for(String category : new TreeMap<String, AtomicLong>(dropped).keySet())
+		{
+			System.err.println("Dropped " + dropped.get(category).get() + " " + category + " diagnostics because they were logged faster than they could be written");
+		}
+	}
+
+	static class Event
+	{
+		Level level;
+		String category;
+		String chrom;
+		int pos;
+		String message;
+		boolean print;
+
+		Event(Level level, String category, String chrom, int pos, String message)
+		{
+			this.level = level;
+			this.category = category;
+			this.chrom = chrom;
+			this.pos = pos;
+			this.message = message;
+		}
+
+		String toTsv()
+		{
+			return level.toString().toLowerCase() + "\t" + category + "\t" + (chrom == null ? "." : chrom) + "\t"
+				+ (chrom == null ? "." : Integer.toString(pos)) + "\t" + message.replace('\t', ' ');
+		}
+
+		String toJson()
+		{
+			return "{\"level\":\"" + level.toString().toLowerCase() + "\",\"category\":" + quote(category)
+				+ ",\"chrom\":" + (chrom == null ? "null" : quote(chrom)) + ",\"pos\":" + (chrom == null ? "null" : Integer.toString(pos))
+				+ ",\"message\":" + quote(message) + "}";
+		}
+
+		static String quote(String s)
+		{
+			StringBuilder res = new StringBuilder("\"");
+			for(int i = 0; i<s.length(); i++)
+			{
+				char c = s.charAt(i);
+				if(c == '"' || c == '\\')
+				{
+					res.append('\\').append(c);
+				}
+				else if(c < 0x20)
+				{
+					res.append(String.format("\\u%04x", (int)c));
+				}
+				else
+				{
+					res.append(c);
+				}
+			}
+			return res.append('"').toString();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Tallies the inserted and deleted sequences seen at each position of a contig while its pileup is parsed
+ * Each position with indels gets a small table of its most frequent sequences, identified by a hash.
+ * When the table is full, the least frequent sequence is replaced as in the space-saving algorithm,
+ * and the count it had is remembered as the possible overestimate of the new sequence's count.
+ */
+
+public class IndelCounts
+{
+	// The number of distinct sequences tracked at each position
+	static final int SLOTS = 4;
+
+	// A sequence must make up more than this proportion of the indels at a position to be reported
+	static final double CONSENSUS_PROPORTION = .8;
+
+	// The tally at each position, or null if no indels were seen there
+	Tally[] tallies;
+
+	int length;
+
+	IndelCounts(int length)
+	{
+		this.length = length;
+		tallies = new Tally[length];
+	}
+
+	/*
+	 * Forgets the indels seen at a position
+	 */
+	void clear(int pos)
+	{
+		if(tallies[pos] != null)
+		{
+			tallies[pos].clear();
+		}
+	}
+
+	/*
+	 * Forgets the indels seen at every position
+	 */
+	void clearAll()
+	{
+		for(Tally tally : tallies)
+		{
+			if(tally != null)
+			{
+				tally.clear();
+			}
+		}
+	}
+
+	/*
+	 * Gets the tally for a position, creating it if needed
+	 */
+	Tally get(int pos)
+	{
+		if(tallies[pos] == null)
+		{
+			tallies[pos] = new Tally();
+		}
+		return tallies[pos];
+	}
+
+	/*
+	 * Gets the sequence making up most of the indels at a position, or an empty String if there is none
+	 */
+	String consensus(int pos)
+	{
+		if(tallies[pos] == null)
+		{
+			return "";
+		}
+		return tallies[pos].consensus();
+	}
+
+	/*
+	 * Computes the hash of an indel sequence in a range of a byte array, ignoring case
+	 */
+	static long hash(byte[] bytes, int start, int end)
+	{
+		long res = 0xcbf29ce484222325L;
+		for(int i = start; i<end; i++)
+		{
+			res ^= Character.toUpperCase((char)(bytes[i] & 0xff));
+			res *= 0x100000001b3L;
+		}
+		return res ^ (end - start);
+	}
+
+	/*
+	 * The most frequent indel sequences at a single position
+	 */
+	static class Tally
+	{
+		long[] hashes = new long[SLOTS];
+		int[] counts = new int[SLOTS];
+
+		// How much each count may be too high because it replaced another sequence
+		int[] errors = new int[SLOTS];
+
+		String[] seqs = new String[SLOTS];
+
+		// The number of slots in use and the total number of indels seen
+		int used;
+		int total;
+
+		void clear()
+		{
+			used = 0;
+			total = 0;
+		}
+
+		/*
+		 * Adds one occurrence of a sequence given by its hash, using the bytes in [start, end) of seq if it is new
+		 */
+		void add(long hash, byte[] seq, int start, int end)
+		{
+			total++;
+			for(int i = 0; i<used; i++)
+			{
+				if(hashes[i] == hash)
+				{
+					counts[i]++;
+					return;
+				}
+			}
+
+			int slot = used;
+			int previous = 0;
+			if(used < SLOTS)
+			{
+				used++;
+			}
+			else
+			{
+				// Replace the least frequent sequence
+				slot = 0;
+				for(int i = 1; i<SLOTS; i++)
+				{
+					if(counts[i] < counts[slot])
+					{
+						slot = i;
+					}
+				}
+				previous = counts[slot];
+			}
+			hashes[slot] = hash;
+			counts[slot] = previous + 1;
+			errors[slot] = previous;
+			seqs[slot] = new String(seq, start, end - start).toUpperCase();
+		}
+
+		/*
+		 * Gets the sequence which is certain to make up most of the indels, or an empty String if there is none
+		 */
+		String consensus()
+		{
+			for(int i = 0; i<used; i++)
+			{
+				if(counts[i] - errors[i] > CONSENSUS_PROPORTION * total)
+				{
+					return seqs[i];
+				}
+			}
+			return "";
+		}
+	}
+}
@@ -2,9 +2,6 @@
  * Converts an iVar TSV to a VCF
  */
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Scanner;
@@ -60,7 +57,7 @@ public class IvarToVcf
 	{
 		parseArgs(args);
 		
-		Scanner input = new Scanner(new FileInputStream(new File(tableFn)));
+		Scanner input = new Scanner(CompressedFiles.open(tableFn));
 		VariantTable variantTable = new VariantTable(input.nextLine());
 		while(input.hasNext())
 		{
@@ -68,7 +65,7 @@ public class IvarToVcf
 		}
 		input.close();
 		
-		PrintWriter out = new PrintWriter(new File(ofn));
+		VcfWriter out = new VcfWriter(ofn);
 		
 		// Print VCF headers
 		printVcfHeader(out);
@@ -83,9 +80,9 @@ public class IvarToVcf
 	}
 	
 	/*
-	 * Prints a standard VCF header to a given PrintWriter
+	 * Prints a standard VCF header to a given writer
 	 */
-	static void printVcfHeader(PrintWriter out)
+	static void printVcfHeader(VcfWriter out) throws Exception
 	{
 		out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
 	}
@@ -140,10 +137,10 @@ public class IvarToVcf
 		}
 		
 		/*
-		 * Prints the row in VCF format to the given PrintWriter
+		 * Prints the row in VCF format to the given writer
 		 * If the consensusOnly flag is true, don't print the variant if it's non-consensus
 		 */
-		void printRowVcf(int rowIndex, PrintWriter out, boolean consensusOnly)
+		void printRowVcf(int rowIndex, VcfWriter out, boolean consensusOnly) throws Exception
 		{
 			String chr = getValue(rowIndex, "region");
 			int pos = Integer.parseInt(getValue(rowIndex, "pos"));
@@ -152,19 +149,18 @@ public class IvarToVcf
 			String id = ".";
 			String filter = ".";
 			String qual = ".";
-			String info = String.format("IVAR_REF_DP=%s;IVAR_REF_RV=%s;IVAR_REF_QUAL=%s;IVAR_ALT_DP=%s;IVAR_ALT_RV=%s;"
-					+ "IVAR_ALT_QUAL=%s;IVAR_ALT_FREQ=%s;IVAR_TOTAL_DP=%s;IVAR_PVAL=%s",
-					getValue(rowIndex, "ref_dp"),
-					getValue(rowIndex, "ref_rv"),
-					getValue(rowIndex, "ref_qual"),
-					getValue(rowIndex, "alt_dp"),
-					getValue(rowIndex, "alt_rv"),
-					getValue(rowIndex, "alt_qual"),
-					getValue(rowIndex, "alt_freq"),
-					getValue(rowIndex, "total_dp"),
-					getValue(rowIndex, "pval")
-			);
-			out.printf("%s\t%d\t%s\t%s\t%s\t%s\t%s\t%s\n", chr, pos, id, ref, alt, qual, filter, info);
+			out.append(chr).append('\t').append(pos).append('\t').append(id).append('\t').append(ref).append('\t').append(alt)
+				.append('\t').append(qual).append('\t').append(filter).append('\t');
+			out.append("IVAR_REF_DP=").append(getValue(rowIndex, "ref_dp"));
+			out.append(";IVAR_REF_RV=").append(getValue(rowIndex, "ref_rv"));
+			out.append(";IVAR_REF_QUAL=").append(getValue(rowIndex, "ref_qual"));
+			out.append(";IVAR_ALT_DP=").append(getValue(rowIndex, "alt_dp"));
+			out.append(";IVAR_ALT_RV=").append(getValue(rowIndex, "alt_rv"));
+			out.append(";IVAR_ALT_QUAL=").append(getValue(rowIndex, "alt_qual"));
+			out.append(";IVAR_ALT_FREQ=").append(getValue(rowIndex, "alt_freq"));
+			out.append(";IVAR_TOTAL_DP=").append(getValue(rowIndex, "total_dp"));
+			out.append(";IVAR_PVAL=").append(getValue(rowIndex, "pval"));
+			out.newline();
 		}
 	}
 }
@@ -0,0 +1,294 @@
+/*
+ * Splits a merge across several worker processes, each of which reads every input but only keeps the variants
+ * in its own ranges of the genome
+ * The genome is cut into ranges of about the same total length, in the order the merged output is sorted in, and
+ * each worker is a separate JVM running MergeVariants with those ranges as its regions.  Since every worker sees
+ * every file, the variants they output are merged exactly as they would be in a single run, and writing the
+ * workers' outputs one after another under a single header gives the same VCF.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Scanner;
+
+public class MergeShards
+{
+	/*
+	 * Merges the files by running one worker process per shard and joining their outputs
+	 */
+	static void merge(String[] vcfs) throws Exception
+	{
+		HashMap<String, Long> lengths = MergeVariants.contigLengthsFn.length() > 0
+			? readContigLengths(MergeVariants.contigLengthsFn) : scanContigLengths(vcfs);
+		ArrayList<ArrayList<Regions.Region>> plan = plan(lengths, MergeVariants.shards);
+		if(MergeVariants.regions != null)
+		{
+			plan = intersect(plan, MergeVariants.regions);
+		}
+
+		File outFile = new File(MergeVariants.ofn).getAbsoluteFile();
+		File dir = Files.createTempDirectory(outFile.getParentFile().toPath(), outFile.getName() + ".shards").toFile();
+		try
+		{
+			// Start every worker at once and then wait for all of them
+			ArrayList<Process> workers = new ArrayList<Process>();
+			for(int i = 0; i<plan.size(); i++)
+			{
+				File bed = new File(dir, "shard" + i + ".bed");
+				writeBed(bed, plan.get(i));
+				ProcessBuilder builder = new ProcessBuilder(workerCommand(bed, new File(dir, "shard" + i + ".vcf")));
+				builder.inheritIO();
+				workers.add(builder.start());
+			}
+			System.err.println("Started " + workers.size() + " merge workers");
+			for(int i = 0; i<workers.size(); i++)
+			{
+				int code = workers.get(i).waitFor();
+				if(code != 0)
+				{
+					for(Process worker : workers)
+					{
+						worker.destroy();
+					}
+					throw new Exception("Merge worker for shard " + i + " failed with exit code " + code);
+				}
+			}
+
+			concatenate(vcfs, dir, plan.size());
+		}
+		finally
+		{
+			for(File f : dir.listFiles())
+			{
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/*
+	 * Gets the command which runs MergeVariants on one shard with the same inputs and options
+	 */
+	static ArrayList<String> workerCommand(File bed, File out)
+	{
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if(MergeVariants.shardMemory.length() > 0)
+		{
+			command.add("-Xmx" + MergeVariants.shardMemory);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("MergeVariants");
+		command.add("file_list=" + MergeVariants.fileList);
+		command.add("out_file=" + out.getPath());
+		command.add("regions=" + bed.getPath());
+		command.add("threads=" + MergeVariants.threads);
+		command.add("streaming=" + MergeVariants.streaming);
+		return command;
+	}
+
+	/*
+	 * Writes the merged header and then the records from each shard's output in order, checking that each shard
+	 * starts after the one before it ends so the output is sorted the same as a single merge
+	 */
+	static void concatenate(String[] vcfs, File dir, int numShards) throws Exception
+	{
+		PrintWriter out = new PrintWriter(CompressedFiles.create(MergeVariants.ofn));
+		MergeVariants.printHeader(out, vcfs);
+		String last = null;
+		for(int i = 0; i<numShards; i++)
+		{
+			BufferedReader input = new BufferedReader(new InputStreamReader(CompressedFiles.open(new File(dir, "shard" + i + ".vcf").getPath())));
+			String line;
+			boolean first = true;
+			while((line = input.readLine()) != null)
+			{
+				if(line.startsWith("#"))
+				{
+					continue;
+				}
+				if(first && last != null && key(line).compareTo(key(last)) <= 0)
+				{
+					input.close();
+					out.close();
+					throw new Exception("Shard " + i + " does not sort after the shard before it, which can happen when a contig name"
+						+ " is another one followed by an underscore; merge without shards instead");
+				}
+				first = false;
+				out.println(line);
+				last = line;
+			}
+			input.close();
+		}
+		out.close();
+	}
+
+	static VariantKey key(String line) throws Exception
+	{
+		VcfEntry entry = new VcfEntry(line);
+		entry.setKey();
+		return entry.key;
+	}
+
+	/*
+	 * Divides the contigs into at most numShards lists of ranges with about the same total length
+	 * Ranges are taken in the order the output is sorted in, so each shard's variants all come after the last shard's.
+	 * Contigs too long for the positions to sort numerically are never cut, and the last range of each contig
+	 * runs to the largest position so variants moved past the end by normalization are still kept.
+	 */
+	static ArrayList<ArrayList<Regions.Region>> plan(HashMap<String, Long> lengths, int numShards)
+	{
+		ArrayList<String> contigs = new ArrayList<String>(lengths.keySet());
+		Collections.sort(contigs, (a, b) -> new VariantKey(a, 1, "", "").compareTo(new VariantKey(b, 1, "", "")));
+		long total = 0;
+		for(long length : lengths.values())
+		{
+			total += length;
+		}
+		long target = Math.max(1, (total + numShards - 1) / numShards);
+
+		ArrayList<ArrayList<Regions.Region>> res = new ArrayList<ArrayList<Regions.Region>>();
+		ArrayList<Regions.Region> shard = new ArrayList<Regions.Region>();
+		long room = target;
+		for(String contig : contigs)
+		{
+			long length = lengths.get(contig);
+			boolean cuttable = length <= VariantKey.MAX_PADDED_POS;
+			long start = 1;
+			while(true)
+			{
+				if(room <= 0 && res.size() < numShards - 1)
+				{
+					res.add(shard);
+					shard = new ArrayList<Regions.Region>();
+					room = target;
+				}
+				boolean last = !cuttable || res.size() == numShards - 1 || length - start + 1 <= room;
+				long end = last ? length : start + room - 1;
+				shard.add(new Regions.Region(contig, start == 1 ? Integer.MIN_VALUE + 1 : (int)start, last ? Integer.MAX_VALUE : (int)end));
+				room -= end - start + 1;
+				if(last)
+				{
+					break;
+				}
+				start = end + 1;
+			}
+		}
+		if(!shard.isEmpty())
+		{
+			res.add(shard);
+		}
+		return res;
+	}
+
+	/*
+	 * Limits each shard to the parts of its ranges inside the given regions, leaving out shards with nothing left
+	 */
+	static ArrayList<ArrayList<Regions.Region>> intersect(ArrayList<ArrayList<Regions.Region>> plan, Regions regions)
+	{
+		ArrayList<ArrayList<Regions.Region>> res = new ArrayList<ArrayList<Regions.Region>>();
+		for(ArrayList<Regions.Region> shard : plan)
+		{
+			ArrayList<Regions.Region> kept = new ArrayList<Regions.Region>();
+			for(Regions.Region range : shard)
+			{
+				ArrayList<Regions.Region> list = regions.byContig.get(range.chrom);
+				if(list == null)
+				{
+					continue;
+				}
+				for(Regions.Region region : list)
+				{
+					int start = Math.max(range.start, region.start), end = Math.min(range.end, region.end);
+					if(start <= end)
+					{
+						kept.add(new Regions.Region(range.chrom, start, end));
+					}
+				}
+			}
+			if(!kept.isEmpty())
+			{
+				res.add(kept);
+			}
+		}
+		return res;
+	}
+
+	static void writeBed(File bed, ArrayList<Regions.Region> ranges) throws Exception
+	{
+		PrintWriter out = new PrintWriter(bed);
+		for(Regions.Region range : ranges)
+		{
+			out.println(range.chrom + "\t" + (range.start - 1) + "\t" + range.end);
+		}
+		out.close();
+	}
+
+	/*
+	 * Reads contig lengths from the first two columns of a file such as a FASTA index
+	 */
+	static HashMap<String, Long> readContigLengths(String fn) throws Exception
+	{
+		HashMap<String, Long> res = new HashMap<String, Long>();
+		Scanner input = new Scanner(CompressedFiles.open(fn));
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0 || line.startsWith("#"))
+			{
+				continue;
+			}
+			String[] tokens = line.split("\t");
+			if(tokens.length < 2)
+			{
+				input.close();
+				throw new Exception("Contig length line has too few columns: " + line);
+			}
+			res.put(tokens[0], Long.parseLong(tokens[1].trim()));
+		}
+		input.close();
+		return res;
+	}
+
+	/*
+	 * Finds the contigs in the inputs and how far along each one their variants go, reading only the first two columns
+	 */
+	static HashMap<String, Long> scanContigLengths(String[] vcfs) throws Exception
+	{
+		HashMap<String, Long> res = new HashMap<String, Long>();
+		for(String vcf : vcfs)
+		{
+			BufferedReader input = new BufferedReader(new InputStreamReader(CompressedFiles.open(vcf)));
+			String line;
+			while((line = input.readLine()) != null)
+			{
+				if(line.startsWith("#") || line.length() == 0)
+				{
+					continue;
+				}
+				int chromEnd = line.indexOf('\t');
+				int posEnd = line.indexOf('\t', chromEnd + 1);
+				if(chromEnd == -1 || posEnd == -1)
+				{
+					continue;
+				}
+				String chrom = line.substring(0, chromEnd);
+				long pos = Long.parseLong(line.substring(chromEnd + 1, posEnd));
+				Long length = res.get(chrom);
+				if(length == null || pos > length)
+				{
+					res.put(chrom, pos);
+				}
+			}
+			input.close();
+		}
+		return res;
+	}
+}
@@ -1,10 +1,12 @@
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 import java.util.Scanner;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class MergeVariants
 {
@@ -17,6 +19,31 @@ public class MergeVariants
 	// Bam file with illumina reads
 	static String illuminaBam = "";
 	
+	// The number of files to read at once
+	static int threads = 1;
+	
+	// Whether to merge position-sorted inputs as they are read instead of loading them all first
+	static boolean streaming = false;
+	
+	// A file keeping the merged variants so later runs only need to read the files added since
+	static String storeFn = "";
+	
+	// BED file of the regions to keep merged variants in, or empty to keep them all
+	static String regionsFn = "";
+	static Regions regions = null;
+	
+	// The number of worker processes to split the genome between, or 1 to merge everything in this one
+	static int shards = 1;
+	
+	// A file with the length of each contig in its first two columns, such as a FASTA index, used to plan the shards
+	static String contigLengthsFn = "";
+	
+	// The maximum heap of each worker process, such as 8g, or empty for the JVM's default
+	static String shardMemory = "";
+	
+	// How much of each input is buffered when they are all read at once
+	static final int STREAMING_BUFFER_SIZE = 1 << 13;
+	
 	static void usage()
 	{
 		System.out.println("Usage: java -cp src MergeVariants [args]");
@@ -28,6 +55,13 @@ public class MergeVariants
 		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println("  illumina_bam (String) - a filename which will be added to the header as ILLUMINABAM");
+		System.out.println("  threads      (int)    - the number of files to read and normalize at once (not used when streaming)");
+		System.out.println("  streaming    (boolean) - merge the files while reading them, which needs each one to be sorted like the output");
+		System.out.println("  store        (String) - a cohort store to add the files to, which only reads the files it does not have yet");
+		System.out.println("  regions      (String) - a BED file of regions, so only variants which start inside them after normalization are output");
+		System.out.println("  shards       (int)    - the number of worker processes to split the genome between, each merging one range of positions");
+		System.out.println("  contig_lengths (String) - a file such as a FASTA index with each contig's name and length, used to plan the shards");
+		System.out.println("  shard_memory (String) - the maximum heap of each worker process, such as 8g");
 		System.out.println();
 	}
 	
@@ -47,6 +81,13 @@ public class MergeVariants
 				if(key.equalsIgnoreCase("file_list")) { fileList = val; }
 				else if(key.equalsIgnoreCase("out_file")) { ofn = val; } 
 				else if(key.equalsIgnoreCase("illumina_bam")) { illuminaBam = val; } 
+				else if(key.equalsIgnoreCase("streaming")) { streaming = Boolean.parseBoolean(val); }
+				else if(key.equalsIgnoreCase("threads")) { threads = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("store")) { storeFn = val; }
+				else if(key.equalsIgnoreCase("regions")) { regionsFn = val; }
+				else if(key.equalsIgnoreCase("shards")) { shards = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("contig_lengths")) { contigLengthsFn = val; }
+				else if(key.equalsIgnoreCase("shard_memory")) { shardMemory = val; }
 
 			}
 		}
@@ -62,161 +103,354 @@ public class MergeVariants
 	{
 		parseArgs(args);
 		String[] vcfs = getFilesFromList();
-		TreeSet<VcfEntry> vars = new TreeSet<VcfEntry>();
-		for(int i = 0; i<vcfs.length; i++)
+		
+		if(storeFn.length() > 0 && (streaming || shards > 1 || regionsFn.length() > 0))
 		{
-			String vcf = vcfs[i];
-			Scanner input = new Scanner(new FileInputStream(new File(vcf)));
-			while(input.hasNext())
+			throw new Exception("A cohort store cannot be used with streaming, shards, or regions");
+		}
+		if(regionsFn.length() > 0)
+		{
+			regions = new Regions(regionsFn);
+		}
+		if(shards > 1)
+		{
+			MergeShards.merge(vcfs);
+			return;
+		}
+		
+		if(streaming)
+		{
+			mergeStreaming(vcfs);
+			return;
+		}
+		
+		// The files already in the store keep their sample numbers, so they must be the start of the list
+		CohortStore store = storeFn.length() > 0 ? CohortStore.load(storeFn) : new CohortStore();
+		int numStored = store.files.size();
+		if(numStored > vcfs.length || !store.files.equals(Arrays.asList(vcfs).subList(0, numStored)))
+		{
+			throw new Exception("The files in " + storeFn + " are not the first " + numStored + " files in " + fileList);
+		}
+		if(numStored > 0)
+		{
+			System.err.println("Loaded " + store.vars.size() + " variants from " + numStored + " files in " + storeFn);
+		}
+		
+		// Each distinct variant, which is looked up once per record and only sorted at the end
+		HashMap<VariantKey, VcfEntry> vars;
+		if(threads > 1)
+		{
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			vars = pool.invoke(new ReadFilesTask(vcfs, numStored, vcfs.length));
+			pool.shutdown();
+		}
+		else
+		{
+			vars = readFiles(vcfs, numStored, vcfs.length);
+		}
+		vars = combine(store.vars, vars);
+		
+		// Save the store before printing, which adds SUPP_VEC and SUPP to each entry
+		if(storeFn.length() > 0)
+		{
+			store.files = new ArrayList<String>(Arrays.asList(vcfs));
+			store.vars = vars;
+			store.save(storeFn);
+		}
+		
+		PrintWriter out = new PrintWriter(CompressedFiles.create(ofn));
+		printHeader(out, vcfs);
+		ArrayList<VcfEntry> sorted = new ArrayList<VcfEntry>(vars.values());
+		Collections.sort(sorted);
+		for(VcfEntry entry : sorted)
+		{
+			printEntry(out, entry, vcfs.length);
+		}
+		
+		out.close();
+	}
+	
+	/*
+	 * Reads the variants of one file into a map from each distinct variant to its merged entry
+	 */
+	static HashMap<VariantKey, VcfEntry> readFile(String vcf, int sample, int numSamples) throws Exception
+	{
+		HashMap<VariantKey, VcfEntry> vars = new HashMap<VariantKey, VcfEntry>();
+		Scanner input = new Scanner(CompressedFiles.open(vcf));
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.startsWith("#"))
 			{
-				String line = input.nextLine();
-				if(line.startsWith("#"))
+				continue;
+			}
+			
+			for(VcfEntry v : normalize(new VcfEntry(line)))
+			{
+				if(!inRegions(v))
 				{
 					continue;
 				}
-				VcfEntry entry = new VcfEntry(line);
-				entry.tabTokens[7] = entry.tabTokens[7].replaceAll(";;", ";");
+				v.support = new SupportSet(numSamples);
+				v.support.add(sample);
 				
-				if(entry.getAlt().startsWith("-"))
-				{
-					String oldRef = entry.getRef();
-					entry.setRef(entry.getRef() + entry.getAlt().substring(1));
-					entry.setAlt(oldRef);
-				}
-				else if(entry.getAlt().startsWith("+"))
+				VcfEntry existing = vars.putIfAbsent(v.key, v);
+				if(existing != null)
 				{
-					entry.setAlt(entry.getRef() + entry.getAlt().substring(1));
+					existing.merge(v);
 				}
-								
-				while(entry.getRef().length() > 1 && entry.getAlt().length() > 1)
-				{
-					int refLength= entry.getRef().length();
-					int altLength = entry.getAlt().length();
-					if(entry.getRef().charAt(refLength - 1) == entry.getAlt().charAt(altLength - 1))
-					{
-						entry.setRef(entry.getRef().substring(0, refLength - 1));
-						entry.setAlt(entry.getAlt().substring(0, altLength - 1));
-					}
-					else if(entry.getRef().substring(0, 1).equals(entry.getAlt().substring(0, 1)))
-					{
-						entry.setPos(1 + entry.getPos());
-						entry.setRef(entry.getRef().substring(1));
-						entry.setAlt(entry.getAlt().substring(1));
-					}
-					else
-					{
-						break;
-					}
-				}
-				
-				entry.setKey();
-				
-				VcfEntry[] splitEntries = split(entry);
-				
-				for(VcfEntry v : splitEntries)
+			}
+		}
+		input.close();
+		return vars;
+	}
+	
+	/*
+	 * Reads a range of files one at a time in order, combining each into the variants of the ones before it
+	 */
+	static HashMap<VariantKey, VcfEntry> readFiles(String[] vcfs, int start, int end) throws Exception
+	{
+		HashMap<VariantKey, VcfEntry> res = new HashMap<VariantKey, VcfEntry>();
+		for(int i = start; i<end; i++)
+		{
+			res = combine(res, readFile(vcfs[i], i, vcfs.length));
+		}
+		return res;
+	}
+	
+	/*
+	 * Whether or not a normalized variant should be kept given the regions, if there are any
+	 */
+	static boolean inRegions(VcfEntry v)
+	{
+		return regions == null || regions.contains(v.getChromosome(), v.getPos());
+	}
+	
+	/*
+	 * Combines the variants from two groups of files, where every file in the first group comes before the second
+	 * The entry from the earlier files stays as the one the other is merged into, the same as reading the files in order,
+	 * and since merging is associative the result does not depend on how the files were grouped.
+	 */
+	static HashMap<VariantKey, VcfEntry> combine(HashMap<VariantKey, VcfEntry> earlier, HashMap<VariantKey, VcfEntry> later) throws Exception
+	{
+		if(earlier.size() >= later.size())
+		{
+			for(VcfEntry v : later.values())
+			{
+				VcfEntry existing = earlier.putIfAbsent(v.key, v);
+				if(existing != null)
 				{
-					v.support.add(i);
-					
-					if(vars.contains(v))
-					{
-						vars.floor(v).merge(v);
-					}
-					else
-					{
-						vars.add(v);
-					}
+					existing.merge(v);
 				}
 			}
-			input.close();
+			return earlier;
 		}
 		
-		int numSamples = vcfs.length;
-		
-		PrintWriter out = new PrintWriter(new File(ofn));
-		
-		String files = "";
+		// Loop over the smaller map, but still merge into the earlier entry
+		for(VcfEntry v : earlier.values())
+		{
+			VcfEntry existing = later.put(v.key, v);
+			if(existing != null)
+			{
+				v.merge(existing);
+			}
+		}
+		return later;
+	}
+	
+	/*
+	 * Merges position-sorted VCFs by reading all of them at once and writing out each variant as soon as
+	 * no file can have another copy of it, so only a few records per file are held in memory
+	 */
+	static void mergeStreaming(String[] vcfs) throws Exception
+	{
+		// The files ordered by the next variant they have ready, with ties broken by file and then line order
+		PriorityQueue<VcfCursor> queue = new PriorityQueue<VcfCursor>();
 		for(int i = 0; i<vcfs.length; i++)
 		{
-			files += vcfs[i];
-			if(i<vcfs.length - 1) files += ",";
+			VcfCursor cursor = new VcfCursor(vcfs[i], i, vcfs.length);
+			if(cursor.peek() != null)
+			{
+				queue.add(cursor);
+			}
+		}
+		
+		PrintWriter out = new PrintWriter(CompressedFiles.create(ofn));
+		printHeader(out, vcfs);
+		while(!queue.isEmpty())
+		{
+			VcfEntry merged = take(queue);
+			while(!queue.isEmpty() && queue.peek().peek().entry.key.equals(merged.key))
+			{
+				merged.merge(take(queue));
+			}
+			printEntry(out, merged, vcfs.length);
 		}
-		out.println("##filelist=" + files);
+		out.close();
+	}
+	
+	/*
+	 * Removes the next variant from the file at the front of the queue, putting the file back if it has more
+	 */
+	static VcfEntry take(PriorityQueue<VcfCursor> queue) throws Exception
+	{
+		VcfCursor cursor = queue.poll();
+		VcfEntry res = cursor.buffer.poll().entry;
+		if(cursor.peek() != null)
+		{
+			queue.add(cursor);
+		}
+		return res;
+	}
+	
+	static void printHeader(PrintWriter out, String[] vcfs)
+	{
+		out.println("##filelist=" + String.join(",", vcfs));
 		if(illuminaBam.length() > 0)
 		{
 			out.println("##ILLUMINABAM=" + illuminaBam);
 		}
 		out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
-		for(VcfEntry entry : vars)
+	}
+	
+	/*
+	 * Prints a merged variant with the samples which support it
+	 */
+	static void printEntry(PrintWriter out, VcfEntry entry, int numSamples) throws Exception
+	{
+		char[] suppVec = new char[numSamples];
+		Arrays.fill(suppVec, '0');
+		entry.support.fill(suppVec);
+		entry.setInfo("SUPP_VEC", new String(suppVec));
+		entry.setInfo("SUPP", entry.support.size() + "");
+		
+		for(int i = 0; i<8; i++)
+		{
+			out.print(entry.get(i) + (i == 7 ? "\n" : "\t"));
+		}
+	}
+	
+	/*
+	 * Converts indels written as +/- sequences, trims bases shared by REF and ALT, and splits what is left
+	 * into the variants which are merged across samples
+	 * Trimming and splitting only ever move a variant to a later position, never an earlier one.
+	 */
+	static VcfEntry[] normalize(VcfEntry entry) throws Exception
+	{
+		if(entry.get(7).contains(";;"))
+		{
+			entry.set(7, entry.get(7).replace(";;", ";"));
+		}
+		
+		String ref = entry.getRef(), alt = entry.getAlt();
+		boolean converted = alt.startsWith("-") || alt.startsWith("+");
+		if(alt.startsWith("-"))
+		{
+			String oldRef = ref;
+			ref = ref + alt.substring(1);
+			alt = oldRef;
+		}
+		else if(alt.startsWith("+"))
+		{
+			alt = ref + alt.substring(1);
+		}
+		
+		// Find the part of each allele left after trimming, taking off shared last bases before shared first bases
+		int refStart = 0, refEnd = ref.length(), altStart = 0, altEnd = alt.length();
+		while(refEnd - refStart > 1 && altEnd - altStart > 1)
 		{
-			char[] suppVec = new char[numSamples];
-			Arrays.fill(suppVec, '0');
-			for(int x : entry.support)
+			if(ref.charAt(refEnd - 1) == alt.charAt(altEnd - 1))
 			{
-				suppVec[x] = '1';
+				refEnd--;
+				altEnd--;
 			}
-			entry.setInfo("SUPP_VEC", new String(suppVec));
-			entry.setInfo("SUPP", entry.support.size() + "");
-			
-			String[] tokens = entry.tabTokens;
-			for(int i = 0; i<8; i++)
+			else if(ref.charAt(refStart) == alt.charAt(altStart))
+			{
+				refStart++;
+				altStart++;
+			}
+			else
 			{
-				out.print(tokens[i] + (i == 7 ? "\n" : "\t"));
+				break;
 			}
 		}
 		
-		out.close();
+		if(refStart > 0)
+		{
+			entry.setPos(entry.getPos() + refStart);
+		}
+		if(converted || refStart > 0 || refEnd < ref.length())
+		{
+			entry.setRef(ref.substring(refStart, refEnd));
+		}
+		if(converted || altStart > 0 || altEnd < alt.length())
+		{
+			entry.setAlt(alt.substring(altStart, altEnd));
+		}
+		
+		entry.setKey();
+		
+		return split(entry);
+	}
+	
+	// Single bases as strings, so splitting does not make a new string for each one
+	static final String[] BASES = new String[128];
+	static
+	{
+		for(char c = 0; c<BASES.length; c++)
+		{
+			BASES[c] = String.valueOf(c);
+		}
+	}
+	
+	static String base(String s, int i)
+	{
+		char c = s.charAt(i);
+		return c < BASES.length ? BASES[c] : String.valueOf(c);
 	}
 	
 	/*
 	 * Splits an entry if it has reflen and altlen equal and greater than 1
+	 * Each part is a copy of the entry which shares its columns, with only the position, alleles, and ID changed.
 	 */
 	static VcfEntry[] split(VcfEntry entry) throws Exception
 	{
-		if(entry.getRef().length() == 1 || entry.getAlt().length() == 1)
+		String ref = entry.getRef(), alt = entry.getAlt();
+		int refLength = ref.length(), altLength = alt.length();
+		if(refLength == 1 || altLength == 1)
 		{
 			return new VcfEntry[] {entry};
 		}
 		
-		ArrayList<VcfEntry> res = new ArrayList<VcfEntry>();
-		for(int i = 0; i<entry.getRef().length() && i < entry.getAlt().length(); i++)
+		String id = entry.getId();
+		int pos = entry.getPos();
+		int length = Math.min(refLength, altLength);
+		ArrayList<VcfEntry> res = new ArrayList<VcfEntry>(length);
+		for(int i = 0; i<length; i++)
 		{
-			VcfEntry cur = new VcfEntry(entry.toString());
-			cur.setRef(entry.getRef().charAt(i) + "");
-			cur.setAlt(entry.getAlt().charAt(i) + "");
-			if(i == entry.getRef().length() - 1 
-					&& entry.getAlt().length() > entry.getRef().length())
-			{
-				cur.setAlt(entry.getAlt().substring(i));
-			}
-			if(i == entry.getAlt().length() - 1 
-					&& entry.getRef().length() > entry.getAlt().length())
+			String curRef = i == refLength - 1 || i < altLength - 1 ? base(ref, i) : ref.substring(i);
+			String curAlt = i == altLength - 1 || i < refLength - 1 ? base(alt, i) : alt.substring(i);
+			if(curRef.equalsIgnoreCase(curAlt))
 			{
-				cur.setRef(entry.getRef().substring(i));
+				continue;
 			}
-			cur.setPos(entry.getPos() + i);
-			cur.setId(entry.getId());
-			if(!entry.getId().equals("."))
+			VcfEntry cur = entry.copy();
+			cur.setRef(curRef);
+			cur.setAlt(curAlt);
+			cur.setPos(pos + i);
+			if(!id.equals("."))
 			{
-				cur.setId(entry.getId() + "_" + i);
+				cur.setId(id + "_" + i);
 			}
 			cur.setKey();
-			if(cur.getRef().equalsIgnoreCase(cur.getAlt()))
-			{
-				continue;
-			}
 			res.add(cur);
 		}
-		VcfEntry[] array = new VcfEntry[res.size()];
-		for(int i = 0; i<res.size(); i++)
-		{
-			array[i] = res.get(i);
-		}
-		return array;
+		return res.toArray(new VcfEntry[res.size()]);
 	}
 	
 	static String[] getFilesFromList() throws Exception
 	{
-		Scanner input = new Scanner(new FileInputStream(new File(fileList)));
+		Scanner input = new Scanner(CompressedFiles.open(fileList));
 		ArrayList<String> res = new ArrayList<String>();
 		while(input.hasNext())
 		{
@@ -234,4 +468,175 @@ public class MergeVariants
 		input.close();
 		return array;
 	}
+	
+	/*
+	 * Reads a range of files by splitting it in half until there is one file per task, and then combining
+	 * the halves back together in file order
+	 */
+	static class ReadFilesTask extends RecursiveTask<HashMap<VariantKey, VcfEntry>>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		String[] vcfs;
+		int start, end;
+		
+		ReadFilesTask(String[] vcfs, int start, int end)
+		{
+			this.vcfs = vcfs;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected HashMap<VariantKey, VcfEntry> compute()
+		{
+			try
+			{
+				if(end - start > 1)
+				{
+					int mid = (start + end) / 2;
+					ReadFilesTask left = new ReadFilesTask(vcfs, start, mid);
+					ReadFilesTask right = new ReadFilesTask(vcfs, mid, end);
+					left.fork();
+					HashMap<VariantKey, VcfEntry> later = right.compute();
+					return combine(left.join(), later);
+				}
+				return readFiles(vcfs, start, end);
+			}
+			catch(Exception e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/*
+	 * A variant read from one of the files, along with where it came from so copies of the same variant
+	 * are merged in the same order as when the files are read one after another
+	 */
+	static class Candidate implements Comparable<Candidate>
+	{
+		VcfEntry entry;
+		int file;
+		long seq;
+		
+		Candidate(VcfEntry entry, int file, long seq)
+		{
+			this.entry = entry;
+			this.file = file;
+			this.seq = seq;
+		}
+		
+		public int compareTo(Candidate o)
+		{
+			int res = entry.compareTo(o.entry);
+			if(res != 0)
+			{
+				return res;
+			}
+			if(file != o.file)
+			{
+				return Integer.compare(file, o.file);
+			}
+			return Long.compare(seq, o.seq);
+		}
+	}
+	
+	/*
+	 * Reads the normalized variants of one sorted VCF in order
+	 * Since normalizing never moves a variant earlier, every buffered variant before the position of
+	 * the next unread line is final, and only those are offered to the merge.
+	 */
+	static class VcfCursor implements Comparable<VcfCursor>
+	{
+		String fn;
+		int file, numSamples;
+		Scanner input;
+		
+		// The variants read so far which have not been merged yet
+		PriorityQueue<Candidate> buffer;
+		long seq;
+		
+		// The next line which has not been normalized yet, and the earliest key it could lead to
+		VcfEntry next;
+		VariantKey nextBound;
+		
+		VcfCursor(String fn, int file, int numSamples) throws Exception
+		{
+			this.numSamples = numSamples;
+			this.fn = fn;
+			this.file = file;
+			input = new Scanner(CompressedFiles.open(fn, STREAMING_BUFFER_SIZE));
+			buffer = new PriorityQueue<Candidate>();
+			advance();
+		}
+		
+		/*
+		 * Reads the next line, making sure the file is sorted
+		 */
+		void advance() throws Exception
+		{
+			while(input.hasNext())
+			{
+				String line = input.nextLine();
+				if(line.startsWith("#"))
+				{
+					continue;
+				}
+				next = new VcfEntry(line);
+				VariantKey bound = new VariantKey(next.getChromosome(), next.getPos(), "", "");
+				if(nextBound != null && bound.compareTo(nextBound) < 0)
+				{
+					throw new Exception(fn + " is not sorted for streaming: " + next.getChromosome() + ":" + next.getPos()
+						+ " comes after " + nextBound.chrom + ":" + nextBound.pos);
+				}
+				nextBound = bound;
+				return;
+			}
+			next = null;
+			input.close();
+		}
+		
+		/*
+		 * Whether or not no later line can lead to a variant which comes before this one
+		 */
+		boolean ready(Candidate c)
+		{
+			if(next == null)
+			{
+				return true;
+			}
+			if(c.entry.key.contig == nextBound.contig)
+			{
+				return c.entry.getPos() < nextBound.pos;
+			}
+			return c.entry.key.compareTo(nextBound) < 0;
+		}
+		
+		/*
+		 * Gets the next variant from this file which is ready to be merged, or null if there are none left
+		 */
+		Candidate peek() throws Exception
+		{
+			while(next != null && (buffer.isEmpty() || !ready(buffer.peek())))
+			{
+				for(VcfEntry v : normalize(next))
+				{
+					if(!inRegions(v))
+					{
+						continue;
+					}
+					v.support = new SupportSet(numSamples);
+					v.support.add(file);
+					buffer.add(new Candidate(v, file, seq++));
+				}
+				advance();
+			}
+			return buffer.peek();
+		}
+		
+		public int compareTo(VcfCursor o)
+		{
+			return buffer.peek().compareTo(o.buffer.peek());
+		}
+	}
 }
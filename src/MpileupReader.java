@@ -0,0 +1,478 @@
+/*
+ * Reads samtools mpileup output straight from the bytes of a memory-mapped file
+ * Only the chromosome, position, reference, and bases columns are decoded, and the
+ * bases column is counted in place without ever creating a String for the line.
+ * Compressed pileups cannot be mapped, so they are decompressed into a buffer which is refilled as it is read.
+ */
+
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class MpileupReader
+{
+	// The largest part of the file which is mapped into memory at once
+	static final long MAX_MAP_SIZE = 1L << 30;
+
+	// The initial buffer size when reading a compressed pileup
+	static final int STREAM_BUFFER_SIZE = 1 << 22;
+
+	// What to do when each character is seen in the bases column
+	static final byte IGNORE = 0;
+	static final byte REF_FORWARD = 1;
+	static final byte REF_REVERSE = 2;
+	static final byte INDEL = 3;
+	static final byte STAR = 4;
+	static final byte HASH = 5;
+	static final byte READ_START = 6;
+	static final byte BASE_FORWARD = 7;
+	static final byte BASE_REVERSE = 8;
+	static final byte[] ACTIONS = new byte[256];
+
+	// The allele index of each base character, or -1 if it is not a base
+	static final byte[] ALLELES = new byte[256];
+
+	static
+	{
+		for(int i = 0; i<ALLELES.length; i++)
+		{
+			ALLELES[i] = (byte)CallVariants.charToInt((char)i);
+		}
+		ACTIONS['.'] = REF_FORWARD;
+		ACTIONS[','] = REF_REVERSE;
+		ACTIONS['+'] = INDEL;
+		ACTIONS['-'] = INDEL;
+		ACTIONS['*'] = STAR;
+		ACTIONS['#'] = HASH;
+		ACTIONS['^'] = READ_START;
+		for(char c : "ACGTN>".toCharArray())
+		{
+			ACTIONS[c] = BASE_FORWARD;
+		}
+		for(char c : "acgtn<".toCharArray())
+		{
+			ACTIONS[c] = BASE_REVERSE;
+		}
+	}
+
+	RandomAccessFile file;
+	FileChannel channel;
+	long fileLength;
+
+	// The decompressed data if the file is compressed, in which case the file length is unknown until the end is reached
+	InputStream stream;
+
+	// The file offset at which to stop reading new lines
+	long end;
+
+	// The currently mapped part of the file and where it starts in the file
+	ByteBuffer buf;
+	long bufOffset;
+
+	// The index in buf of the first byte which has not been read yet
+	int next;
+
+	// The current line and its bases column as index ranges in buf
+	int lineStart, lineEnd;
+	int basesStart, basesEnd;
+
+	// Where the chromosome and position columns end in the current line
+	int chromEnd, posEnd;
+
+	// If region is set, only lines in it are read, stopping once past it
+	// If regions is set, lines outside of all of them are skipped
+	Regions.Region region;
+	Regions regions;
+	boolean inRegionContig;
+
+	// The decoded fields of the current line, with pos being 1-based as in the file
+	String chrom;
+	byte[] chromBytes;
+	int pos;
+	char ref;
+
+	MpileupReader(String fn) throws Exception
+	{
+		this(fn, 0, Long.MAX_VALUE);
+	}
+
+	/*
+	 * Reads only the lines which start in the range of file offsets [start, end)
+	 * The start offset must be the beginning of a line
+	 */
+	MpileupReader(String fn, long start, long end) throws Exception
+	{
+		if(CompressedFiles.isCompressed(fn))
+		{
+			if(start > 0)
+			{
+				throw new Exception("Compressed pileups can only be read from the start");
+			}
+			stream = CompressedFiles.open(fn);
+			fileLength = Long.MAX_VALUE;
+			this.end = end;
+			buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+			buf.limit(0);
+			map(0);
+			return;
+		}
+		file = new RandomAccessFile(fn, "r");
+		channel = file.getChannel();
+		fileLength = channel.size();
+		this.end = Math.min(end, fileLength);
+		map(Math.min(start, fileLength));
+	}
+
+	/*
+	 * Splits a file into roughly equal chunks whose boundaries are at the starts of lines
+	 * Returns the offsets of the boundaries, including 0 and the file length
+	 * A compressed file can only be read from the start, so it is kept as a single chunk
+	 */
+	static long[] chunkBoundaries(String fn, int numChunks) throws Exception
+	{
+		if(CompressedFiles.isCompressed(fn))
+		{
+			return new long[] {0, Long.MAX_VALUE};
+		}
+		RandomAccessFile f = new RandomAccessFile(fn, "r");
+		long length = f.length();
+		long[] res = new long[numChunks + 1];
+		res[numChunks] = length;
+		byte[] block = new byte[1 << 16];
+		for(int i = 1; i<numChunks; i++)
+		{
+			// Move forward from the even split point to the start of the next line
+			long offset = Math.max(res[i-1], length * i / numChunks);
+			if(offset > 0 && offset < length)
+			{
+				f.seek(offset - 1);
+				boolean found = false;
+				while(!found && offset < length)
+				{
+					int read = f.read(block);
+					if(read <= 0)
+					{
+						break;
+					}
+					for(int j = 0; j<read; j++)
+					{
+						if(block[j] == '\n')
+						{
+							offset += j;
+							found = true;
+							break;
+						}
+					}
+					if(!found)
+					{
+						offset += read;
+					}
+				}
+			}
+			res[i] = Math.min(offset, length);
+		}
+		f.close();
+		return res;
+	}
+
+	/*
+	 * Maps the part of the file starting at a given offset
+	 * For a compressed file, the offset must be within the current buffer, and the data from there on
+	 * is moved to the start of the buffer and then followed by as much newly decompressed data as fits
+	 */
+	void map(long offset) throws Exception
+	{
+		if(stream != null)
+		{
+			refill(offset);
+			return;
+		}
+		bufOffset = offset;
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAX_MAP_SIZE, fileLength - offset));
+		next = 0;
+	}
+
+	void refill(long offset) throws Exception
+	{
+		int keep = (int)(bufOffset + buf.limit() - offset);
+		byte[] old = buf.array();
+		byte[] data = old;
+		if(keep == old.length)
+		{
+			// The current line fills the whole buffer, so make room for more of it
+			data = new byte[2 * old.length];
+		}
+		System.arraycopy(old, (int)(offset - bufOffset), data, 0, keep);
+		int size = keep;
+		while(size < data.length)
+		{
+			int read = stream.read(data, size, data.length - size);
+			if(read < 0)
+			{
+				fileLength = offset + size;
+				break;
+			}
+			size += read;
+		}
+		buf = ByteBuffer.wrap(data, 0, size);
+		bufOffset = offset;
+		next = 0;
+	}
+
+	/*
+	 * Moves to the next line with pileup data, returning false if there are none left
+	 */
+	boolean next() throws Exception
+	{
+		while(bufOffset + next < end && bufOffset + next < fileLength)
+		{
+			// Find the end of the line and the tabs separating the first five columns
+			int tabs = 0;
+			int i = next;
+			while(true)
+			{
+				if(i == buf.limit())
+				{
+					if(bufOffset + i >= fileLength)
+					{
+						break;
+					}
+					if(next == 0 && stream == null)
+					{
+						throw new Exception("Pileup line at offset " + bufOffset + " is too long to map");
+					}
+
+					// The line continues past the mapped region, so map again starting from the line
+					map(bufOffset + next);
+					i = 0;
+					tabs = 0;
+					continue;
+				}
+				byte c = buf.get(i);
+				if(c == '\n')
+				{
+					break;
+				}
+				if(c == '\t')
+				{
+					tabs++;
+					if(tabs == 1) chromEnd = i;
+					else if(tabs == 2) posEnd = i;
+					else if(tabs == 4) basesStart = i + 1;
+					else if(tabs == 5) basesEnd = i;
+				}
+				i++;
+			}
+
+			lineStart = next;
+			lineEnd = i;
+			next = i + 1;
+			if(lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+			{
+				lineEnd--;
+			}
+
+			if(lineEnd == lineStart || buf.get(lineStart) == '@')
+			{
+				continue;
+			}
+			if(tabs < 4)
+			{
+				throw new Exception("Pileup line at offset " + (bufOffset + lineStart) + " has too few columns");
+			}
+			if(tabs == 4)
+			{
+				basesEnd = lineEnd;
+			}
+
+			decodeChrom();
+			pos = 0;
+			for(int j = chromEnd + 1; j<posEnd; j++)
+			{
+				pos = pos * 10 + buf.get(j) - '0';
+			}
+			ref = (char)(buf.get(posEnd + 1) & 0xff);
+			if(region != null)
+			{
+				if(!chrom.equals(region.chrom))
+				{
+					if(inRegionContig)
+					{
+						return false;
+					}
+					continue;
+				}
+				inRegionContig = true;
+				if(pos > region.end)
+				{
+					return false;
+				}
+				if(pos < region.start)
+				{
+					continue;
+				}
+			}
+			else if(regions != null && !regions.contains(chrom, pos))
+			{
+				continue;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Sets the chromosome name, reusing the previous String when the name has not changed
+	 */
+	void decodeChrom()
+	{
+		int length = chromEnd - lineStart;
+		boolean same = chromBytes != null && chromBytes.length == length;
+		for(int i = 0; same && i<length; i++)
+		{
+			same = chromBytes[i] == buf.get(lineStart + i);
+		}
+		if(!same)
+		{
+			chromBytes = new byte[length];
+			for(int i = 0; i<length; i++)
+			{
+				chromBytes[i] = buf.get(lineStart + i);
+			}
+			chrom = new String(chromBytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	// Holds the sequence of the indel currently being counted
+	byte[] indelSeq = new byte[64];
+
+	/*
+	 * Gets the number of A/C/G/T/N's covering the current position from its bases column
+	 * The counts are written in place into the given position of the count store, replacing anything already there
+	 * If indels is not null, the inserted and deleted sequences are also tallied at the same position there
+	 */
+	void countBases(AlleleCounts counts, IndelCounts indels, int slot)
+	{
+		counts.clear(slot);
+		IndelCounts.Tally tally = null;
+		if(indels != null)
+		{
+			indels.clear(slot);
+		}
+		int[] res = counts.counts;
+
+		// Where the counts for each strand of this position start
+		int both = counts.offset(slot);
+		int positive = both + AlleleCounts.ALLELES;
+		int negative = positive + AlleleCounts.ALLELES;
+
+		int refAllele = ALLELES[ref & 0xff];
+
+		for(int i = basesStart; i<basesEnd; i++)
+		{
+			int c = buf.get(i) & 0xff;
+			int allele = ALLELES[c];
+			switch(ACTIONS[c])
+			{
+				// Exact match so use ref character
+				case REF_FORWARD:
+					if(refAllele != -1)
+					{
+						res[both + refAllele]++;
+						res[positive + refAllele]++;
+					}
+					break;
+				case REF_REVERSE:
+					if(refAllele != -1)
+					{
+						res[both + refAllele]++;
+						res[negative + refAllele]++;
+					}
+					break;
+
+				// Insertion or deletion after this base, where the case of the sequence gives the strand
+				case INDEL:
+					int j = i + 1;
+					int length = 0;
+					while(j < basesEnd && buf.get(j) >= '0' && buf.get(j) <= '9')
+					{
+						length = length * 10 + buf.get(j) - '0';
+						j++;
+					}
+					boolean capital = j < basesEnd && ((buf.get(j) >= 'A' && buf.get(j) <= 'Z') || buf.get(j) == '*');
+					int idx = c == '+' ? AlleleCounts.INSERTION : AlleleCounts.DELETION;
+					res[both + idx]++;
+					res[(capital ? positive : negative) + idx]++;
+					i = j - 1 + length;
+
+					if(indels != null)
+					{
+						length = Math.max(0, Math.min(length, basesEnd - j));
+						if(length > indelSeq.length)
+						{
+							indelSeq = new byte[2 * length];
+						}
+						for(int k = 0; k<length; k++)
+						{
+							indelSeq[k] = buf.get(j + k);
+						}
+						if(tally == null)
+						{
+							tally = indels.get(slot);
+						}
+						tally.add(IndelCounts.hash(indelSeq, 0, length), indelSeq, 0, length);
+					}
+					break;
+
+				case STAR:
+					res[both + AlleleCounts.INSERTION]++;
+					res[positive + AlleleCounts.INSERTION]++;
+					break;
+				case HASH:
+					res[both + AlleleCounts.INSERTION]++;
+					res[negative + AlleleCounts.INSERTION]++;
+					break;
+
+				// First character indicator is followed by the mapping quality, so skip both
+				case READ_START:
+					i++;
+					break;
+
+				// Mismatch or N so count this character on the strand given by its case
+				case BASE_FORWARD:
+					res[both + allele]++;
+					res[positive + allele]++;
+					break;
+				case BASE_REVERSE:
+					res[both + allele]++;
+					res[negative + allele]++;
+					break;
+
+				// Last character indicator or anything unrecognized - ignore
+				default:
+					break;
+			}
+		}
+	}
+
+	/*
+	 * The offset in the file where the current line starts
+	 */
+	long lineOffset()
+	{
+		return bufOffset + lineStart;
+	}
+
+	void close() throws Exception
+	{
+		if(stream != null)
+		{
+			stream.close();
+			return;
+		}
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * An index from contig and position to byte offset in a position-sorted mpileup file
+ * The index is kept next to the pileup in a text file ending in .vvi, which lists the offset of the
+ * first line of each contig and then of a line at least every INTERVAL positions or INTERVAL_BYTES bytes.
+ * It is built the first time it is needed and rebuilt whenever the pileup's size or modification time changes.
+ */
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Scanner;
+
+public class PileupIndex
+{
+	static final String SUFFIX = ".vvi";
+	static final String HEADER = "#VVINDEX";
+
+	// The most positions and bytes between consecutive index entries
+	static final int INTERVAL = 1024;
+	static final long INTERVAL_BYTES = 1L << 20;
+
+	// The indexed positions and their offsets for each contig, in increasing order
+	HashMap<String, ArrayList<long[]>> entries;
+
+	// The contigs in the order they appear in the pileup
+	ArrayList<String> contigs;
+
+	PileupIndex()
+	{
+		entries = new HashMap<String, ArrayList<long[]>>();
+		contigs = new ArrayList<String>();
+	}
+
+	/*
+	 * Gets the index of a pileup, reading it from the sidecar file if it is up to date or else building it
+	 */
+	static PileupIndex load(String pileupFn) throws Exception
+	{
+		File pileup = new File(pileupFn);
+		File indexFile = new File(pileupFn + SUFFIX);
+		String header = HEADER + "\t" + pileup.length() + "\t" + pileup.lastModified();
+		if(indexFile.exists())
+		{
+			PileupIndex index = read(indexFile, header);
+			if(index != null)
+			{
+				return index;
+			}
+		}
+
+		System.err.println("Indexing " + pileupFn);
+		PileupIndex index = build(pileupFn);
+		try
+		{
+			index.write(indexFile, header);
+		}
+		catch(Exception e)
+		{
+			// The index can still be used this time even if it cannot be saved
+			System.err.println("Could not save pileup index " + indexFile + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	/*
+	 * Reads an index file, returning null if it was made for a different version of the pileup
+	 */
+	static PileupIndex read(File indexFile, String header) throws Exception
+	{
+		Scanner input = new Scanner(indexFile);
+		if(!input.hasNextLine() || !input.nextLine().equals(header))
+		{
+			input.close();
+			return null;
+		}
+		PileupIndex index = new PileupIndex();
+		while(input.hasNextLine())
+		{
+			String[] tokens = input.nextLine().split("\t");
+			index.add(tokens[0], Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]));
+		}
+		input.close();
+		return index;
+	}
+
+	/*
+	 * Scans a whole pileup to find the offsets of the indexed lines
+	 */
+	static PileupIndex build(String pileupFn) throws Exception
+	{
+		PileupIndex index = new PileupIndex();
+		MpileupReader input = new MpileupReader(pileupFn);
+		String lastChr = null;
+		int lastPos = 0;
+		long lastOffset = 0;
+		while(input.next())
+		{
+			long offset = input.lineOffset();
+			if(!input.chrom.equals(lastChr))
+			{
+				if(index.entries.containsKey(input.chrom))
+				{
+					input.close();
+					throw new Exception("Pileup must be sorted to use regions, but contig " + input.chrom + " appears in more than one block");
+				}
+				lastChr = input.chrom;
+			}
+			else if(input.pos <= lastPos)
+			{
+				input.close();
+				throw new Exception("Pileup must be sorted to use regions, but " + lastChr + ":" + input.pos + " comes after position " + lastPos);
+			}
+			else if(input.pos / INTERVAL == lastPos / INTERVAL && offset - lastOffset < INTERVAL_BYTES)
+			{
+				lastPos = input.pos;
+				continue;
+			}
+			index.add(input.chrom, input.pos, offset);
+			lastPos = input.pos;
+			lastOffset = offset;
+		}
+		input.close();
+		return index;
+	}
+
+	void add(String chrom, int pos, long offset)
+	{
+		if(!entries.containsKey(chrom))
+		{
+			entries.put(chrom, new ArrayList<long[]>());
+			contigs.add(chrom);
+		}
+		entries.get(chrom).add(new long[] {pos, offset});
+	}
+
+	void write(File indexFile, String header) throws Exception
+	{
+		PrintWriter out = new PrintWriter(indexFile);
+		out.println(header);
+		for(String chrom : contigs)
+		{
+			for(long[] entry : entries.get(chrom))
+			{
+				out.println(chrom + "\t" + entry[0] + "\t" + entry[1]);
+			}
+		}
+		out.close();
+	}
+
+	/*
+	 * Gets the offset of a line at or before the given position of a contig from which to start reading,
+	 * or -1 if the contig is not in the pileup
+	 */
+	long offset(String chrom, int pos)
+	{
+		ArrayList<long[]> list = entries.get(chrom);
+		if(list == null)
+		{
+			return -1;
+		}
+		int lo = 0, hi = list.size() - 1;
+		while(lo < hi)
+		{
+			int mid = (lo + hi + 1) / 2;
+			if(list.get(mid)[0] <= pos)
+			{
+				lo = mid;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+		return list.get(lo)[1];
+	}
+
+	/*
+	 * Finds the parts of a pileup to read for a set of regions, in the order the regions appear in the file
+	 * Each part starts at the indexed line closest to its region and stops at the end of it.
+	 * A compressed pileup cannot be read from the middle, so it is read as a single part which skips lines outside the regions.
+	 */
+	static ArrayList<Slice> slices(String pileupFn, Regions regions) throws Exception
+	{
+		ArrayList<Slice> res = new ArrayList<Slice>();
+		if(CompressedFiles.isCompressed(pileupFn))
+		{
+			res.add(new Slice(pileupFn, 0, Long.MAX_VALUE, null, regions));
+			return res;
+		}
+
+		PileupIndex index = load(pileupFn);
+		for(String chrom : index.contigs)
+		{
+			ArrayList<Regions.Region> list = regions.byContig.get(chrom);
+			if(list == null)
+			{
+				continue;
+			}
+			for(Regions.Region region : list)
+			{
+				res.add(new Slice(pileupFn, index.offset(chrom, region.start), Long.MAX_VALUE, region, null));
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * A part of a pileup to read, made up of the lines starting in the range of offsets [offset, end),
+	 * which is only opened once it is needed
+	 */
+	static class Slice
+	{
+		String fn;
+		long offset, end;
+
+		// The region to stop at the end of, or else the regions whose lines should be kept while reading everything
+		Regions.Region region;
+		Regions regions;
+
+		Slice(String fn, long offset, long end, Regions.Region region, Regions regions)
+		{
+			this.fn = fn;
+			this.offset = offset;
+			this.end = end;
+			this.region = region;
+			this.regions = regions;
+		}
+
+		MpileupReader open() throws Exception
+		{
+			MpileupReader reader = new MpileupReader(fn, offset, end);
+			reader.region = region;
+			reader.regions = regions;
+			return reader;
+		}
+	}
+}
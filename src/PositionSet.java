@@ -0,0 +1,150 @@
+/*
+ * A set of non-negative positions stored as a bitmap, one bit per position
+ * Ranges of positions are marked and queried a whole 64-bit word at a time, so a long deletion costs one
+ * operation per 64 bases instead of one boxed entry per base.  The bitmap grows as needed, and positions below
+ * a given point can be dropped so a set which follows a position-sorted scan only keeps a small window in memory.
+ */
+
+import java.util.Arrays;
+
+public class PositionSet
+{
+	// The bits for positions starting at 64 * base
+	long[] words;
+	int base;
+
+	PositionSet()
+	{
+		words = new long[16];
+	}
+
+	/*
+	 * Makes a set with room for positions up to a given length without growing
+	 */
+	PositionSet(int length)
+	{
+		words = new long[Math.max((length >> 6) + 1, 1)];
+	}
+
+	/*
+	 * Gets the index in words of the word holding a position, growing the array if needed to make room for it
+	 */
+	int wordFor(int pos)
+	{
+		int idx = (pos >> 6) - base;
+		if(idx >= words.length)
+		{
+			words = Arrays.copyOf(words, Math.max(idx + 1, 2 * words.length));
+		}
+		return idx;
+	}
+
+	void add(int pos)
+	{
+		if((pos >> 6) < base)
+		{
+			return;
+		}
+		int idx = wordFor(pos);
+		words[idx] |= 1L << pos;
+	}
+
+	/*
+	 * Adds all positions in [start, end)
+	 */
+	void addRange(int start, int end)
+	{
+		start = Math.max(start, base << 6);
+		if(start >= end)
+		{
+			return;
+		}
+		int first = wordFor(start), last = wordFor(end - 1);
+		long firstMask = -1L << start, lastMask = -1L >>> -end;
+		if(first == last)
+		{
+			words[first] |= firstMask & lastMask;
+			return;
+		}
+		words[first] |= firstMask;
+		for(int i = first + 1; i<last; i++)
+		{
+			words[i] = -1L;
+		}
+		words[last] |= lastMask;
+	}
+
+	boolean contains(int pos)
+	{
+		int idx = (pos >> 6) - base;
+		if(pos < 0 || idx < 0 || idx >= words.length)
+		{
+			return false;
+		}
+		return (words[idx] & (1L << pos)) != 0;
+	}
+
+	/*
+	 * Whether or not any position in [start, end) is in the set
+	 */
+	boolean containsAny(int start, int end)
+	{
+		start = Math.max(start, base << 6);
+		end = Math.min(end, (base + words.length) << 6);
+		if(start >= end)
+		{
+			return false;
+		}
+		int first = (start >> 6) - base, last = ((end - 1) >> 6) - base;
+		long firstMask = -1L << start, lastMask = -1L >>> -end;
+		if(first == last)
+		{
+			return (words[first] & firstMask & lastMask) != 0;
+		}
+		if((words[first] & firstMask) != 0 || (words[last] & lastMask) != 0)
+		{
+			return true;
+		}
+		for(int i = first + 1; i<last; i++)
+		{
+			if(words[i] != 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Removes every position below pos, releasing the words which only held those positions
+	 */
+	void removeBelow(int pos)
+	{
+		int idx = (pos >> 6) - base;
+		if(idx <= 0)
+		{
+			if(idx == 0)
+			{
+				words[0] &= -1L << pos;
+			}
+			return;
+		}
+		if(idx >= words.length)
+		{
+			Arrays.fill(words, 0);
+		}
+		else
+		{
+			System.arraycopy(words, idx, words, 0, words.length - idx);
+			Arrays.fill(words, words.length - idx, words.length, 0);
+			words[0] &= -1L << pos;
+		}
+		base = pos >> 6;
+	}
+
+	void clear()
+	{
+		Arrays.fill(words, 0);
+		base = 0;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Pulls the variants out of a merged VCF which are supported by a given pattern of samples, using a
+ * SupportIndex so the SUPP_VEC of every record does not need to be parsed for each query
+ */
+
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+public class QuerySupport
+{
+	static String vcfFn = "", ofn = "";
+
+	// The SUPP_VEC patterns to look for, separated by commas
+	static String patterns = "";
+
+	static int minSupport = 0;
+	static int maxSupport = Integer.MAX_VALUE;
+
+	/*
+	 * Prints usage message
+	 */
+	static void usage()
+	{
+		System.out.println("Usage: java -cp src QuerySupport [args]");
+		System.out.println("  Example: java -cp src QuerySupport vcf_file=merged.vcf pattern=110,101 out_file=inconsistent.vcf");
+		System.out.println();
+		System.out.println("Required args:");
+		System.out.println("  vcf_file    (String) - a VCF from MergeVariants with a SUPP_VEC in every record");
+		System.out.println("  out_file    (String) - file to write the matching variants to");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  pattern     (String) - comma-separated SUPP_VEC patterns to match, with . for samples which can go either way");
+		System.out.println("  min_support (int)    - only output variants supported by at least this many samples");
+		System.out.println("  max_support (int)    - only output variants supported by at most this many samples");
+		System.out.println();
+	}
+
+	/*
+	 * Parse command line arguments
+	 */
+	static void parseArgs(String[] args)
+	{
+		for(String s : args)
+		{
+			int equalsIdx = s.indexOf('=');
+			if(equalsIdx == -1)
+			{
+
+			}
+			else
+			{
+				String key = s.substring(0, equalsIdx);
+				String val = s.substring(1 + equalsIdx);
+				if(key.equalsIgnoreCase("vcf_file")) { vcfFn = val; }
+				else if(key.equalsIgnoreCase("out_file")) { ofn = val; }
+				else if(key.equalsIgnoreCase("pattern")) { patterns = val; }
+				else if(key.equalsIgnoreCase("min_support")) { minSupport = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("max_support")) { maxSupport = Integer.parseInt(val); }
+			}
+		}
+
+		if(vcfFn.length() == 0 || ofn.length() == 0)
+		{
+			usage();
+			System.exit(1);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		parseArgs(args);
+
+		SupportIndex index = SupportIndex.load(vcfFn);
+		ArrayList<SupportIndex.Pattern> queries = new ArrayList<SupportIndex.Pattern>();
+		for(String pattern : patterns.split(","))
+		{
+			if(pattern.length() > 0)
+			{
+				queries.add(new SupportIndex.Pattern(pattern, index.numSamples));
+			}
+		}
+
+		// Find the matching records from the index alone
+		boolean[] matches = new boolean[index.support.size()];
+		int numMatches = 0;
+		for(int i = 0; i<matches.length; i++)
+		{
+			SupportSet set = index.support.get(i);
+			if(set.size() < minSupport || set.size() > maxSupport)
+			{
+				continue;
+			}
+			boolean match = queries.isEmpty();
+			for(SupportIndex.Pattern query : queries)
+			{
+				if(query.matches(set))
+				{
+					match = true;
+					break;
+				}
+			}
+			if(match)
+			{
+				matches[i] = true;
+				numMatches++;
+			}
+		}
+		System.err.println("Found " + numMatches + " of " + matches.length + " variants");
+
+		// Copy the header and then only the matching lines, skipping straight to them when the offsets are known
+		InputStream input = CompressedFiles.open(vcfFn);
+		SupportIndex.LineReader lines = new SupportIndex.LineReader(input);
+		PrintWriter out = new PrintWriter(CompressedFiles.create(ofn));
+		String line = lines.next();
+		while(line != null && (line.length() == 0 || line.startsWith("#")))
+		{
+			out.println(line);
+			line = lines.next();
+		}
+		int record = 0;
+		while(line != null && record < matches.length)
+		{
+			if(line.length() > 0 && !line.startsWith("#"))
+			{
+				if(matches[record])
+				{
+					out.println(line);
+				}
+				record++;
+				if(record < matches.length && index.offsets.get(record) >= 0)
+				{
+					// Jump to the next matching record
+					while(record < matches.length && !matches[record])
+					{
+						record++;
+					}
+					if(record == matches.length)
+					{
+						break;
+					}
+					lines.skipTo(index.offsets.get(record));
+				}
+			}
+			line = lines.next();
+		}
+		input.close();
+		out.close();
+	}
+}
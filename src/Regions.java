@@ -0,0 +1,116 @@
+/*
+ * A set of genomic regions read from a BED file, merged and sorted within each contig
+ * BED coordinates are 0-based and half-open, and are stored here as 1-based inclusive ranges like pileup positions.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Scanner;
+
+public class Regions
+{
+	// The regions of each contig, sorted by start and not overlapping
+	HashMap<String, ArrayList<Region>> byContig;
+
+	Regions(String bedFn) throws Exception
+	{
+		byContig = new HashMap<String, ArrayList<Region>>();
+		Scanner input = new Scanner(CompressedFiles.open(bedFn));
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+			{
+				continue;
+			}
+			String[] tokens = line.split("\t");
+			if(tokens.length < 3)
+			{
+				throw new Exception("BED line has too few columns: " + line);
+			}
+			Region region = new Region(tokens[0], Integer.parseInt(tokens[1].trim()) + 1, Integer.parseInt(tokens[2].trim()));
+			if(region.end < region.start)
+			{
+				continue;
+			}
+			if(!byContig.containsKey(region.chrom))
+			{
+				byContig.put(region.chrom, new ArrayList<Region>());
+			}
+			byContig.get(region.chrom).add(region);
+		}
+		input.close();
+
+		// Sort each contig's regions and merge any which overlap or touch
+		for(String chrom : byContig.keySet())
+		{
+			ArrayList<Region> list = byContig.get(chrom);
+			Collections.sort(list);
+			ArrayList<Region> merged = new ArrayList<Region>();
+			for(Region region : list)
+			{
+				Region last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+				if(last != null && region.start <= last.end + 1)
+				{
+					last.end = Math.max(last.end, region.end);
+				}
+				else
+				{
+					merged.add(region);
+				}
+			}
+			byContig.put(chrom, merged);
+		}
+	}
+
+	/*
+	 * Whether or not a 1-based position on a contig is in any of the regions
+	 */
+	boolean contains(String chrom, int pos)
+	{
+		ArrayList<Region> list = byContig.get(chrom);
+		if(list == null)
+		{
+			return false;
+		}
+
+		// Binary search for the last region starting at or before the position
+		int lo = 0, hi = list.size() - 1;
+		while(lo < hi)
+		{
+			int mid = (lo + hi + 1) / 2;
+			if(list.get(mid).start <= pos)
+			{
+				lo = mid;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+		Region region = list.get(lo);
+		return region.start <= pos && pos <= region.end;
+	}
+
+	/*
+	 * A range of 1-based positions [start, end] on a contig
+	 */
+	static class Region implements Comparable<Region>
+	{
+		String chrom;
+		int start, end;
+
+		Region(String chrom, int start, int end)
+		{
+			this.chrom = chrom;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int compareTo(Region o)
+		{
+			return Integer.compare(start, o.start);
+		}
+	}
+}
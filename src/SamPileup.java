@@ -0,0 +1,251 @@
+/*
+ * Builds the same strand-aware allele counts as parsing samtools mpileup output, but directly from SAM alignments
+ * Each read is walked along its CIGAR string, and every aligned base, insertion, and deletion is counted at the
+ * position where mpileup would have printed it, including the sequences of the indels.
+ * Like samtools mpileup, reads which are unmapped, secondary, QC failures, duplicates, or in improper pairs are
+ * skipped, as are bases below the minimum base quality.  Base alignment quality (BAQ) is not recomputed, so the
+ * counts correspond to running samtools mpileup with -B, and there is no maximum depth.
+ * Overlapping mates are not detected either: where the two reads of a pair cover the same position, both of their
+ * bases are counted, like samtools mpileup with -x, while by default mpileup keeps only the higher quality one.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SamPileup
+{
+	// Reads with any of these flags are skipped: unmapped, secondary, failing QC, or duplicate
+	static final int SKIP_FLAGS = 4 | 256 | 512 | 1024;
+
+	static final int PAIRED_FLAG = 1;
+	static final int PROPER_PAIR_FLAG = 2;
+	static final int REVERSE_FLAG = 16;
+
+	// The reference sequence of each contig
+	HashMap<String, byte[]> reference;
+
+	int minBaseQuality;
+
+	// Counts and indel sequences for each contig which has any alignments
+	ConcurrentHashMap<String, AlleleCounts> cov;
+	ConcurrentHashMap<String, IndelCounts> indels;
+
+	// The contigs in the order their first alignment was seen
+	ArrayList<String> contigs;
+
+	SamPileup(HashMap<String, byte[]> reference, int minBaseQuality, ConcurrentHashMap<String, AlleleCounts> cov,
+			ConcurrentHashMap<String, IndelCounts> indels, ArrayList<String> contigs)
+	{
+		this.reference = reference;
+		this.minBaseQuality = minBaseQuality;
+		this.cov = cov;
+		this.indels = indels;
+		this.contigs = contigs;
+	}
+
+	/*
+	 * Reads a FASTA file into a map from contig name to sequence
+	 */
+	static HashMap<String, byte[]> readGenome(String fn) throws Exception
+	{
+		HashMap<String, byte[]> genome = new HashMap<String, byte[]>();
+		Scanner input = new Scanner(CompressedFiles.open(fn));
+
+		StringBuilder seq = new StringBuilder("");
+		String refName = "";
+
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.startsWith(">"))
+			{
+				String name = line.split(" ")[0].substring(1);
+				if(refName.length() > 0)
+				{
+					// add last contig
+					genome.put(refName, seq.toString().getBytes());
+					seq = new StringBuilder("");
+				}
+				refName = name;
+			}
+			else
+			{
+				seq.append(line);
+			}
+		}
+		if(refName.length() > 0)
+		{
+			// add last contig
+			genome.put(refName, seq.toString().getBytes());
+		}
+		input.close();
+		return genome;
+	}
+
+	/*
+	 * Counts all of the alignments in a SAM file, or in standard input if the filename is "-"
+	 */
+	void addAlignments(String fn) throws Exception
+	{
+		Scanner input = new Scanner(CompressedFiles.open(fn));
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0 || line.startsWith("@"))
+			{
+				continue;
+			}
+			addAlignment(line);
+		}
+		input.close();
+	}
+
+	/*
+	 * Counts the bases and indels of a single SAM record
+	 */
+	void addAlignment(String line) throws Exception
+	{
+		String[] tokens = line.split("\t");
+		if(tokens.length < 11)
+		{
+			throw new Exception("SAM line had too few entries: " + line);
+		}
+
+		int flag = Integer.parseInt(tokens[1]);
+		String chrName = tokens[2];
+		String cigar = tokens[5];
+		String readSeq = tokens[9];
+		if((flag & SKIP_FLAGS) != 0 || ((flag & PAIRED_FLAG) != 0 && (flag & PROPER_PAIR_FLAG) == 0))
+		{
+			return;
+		}
+		if(chrName.equals("*") || cigar.equals("*") || readSeq.equals("*"))
+		{
+			return;
+		}
+
+		byte[] ref = reference.get(chrName);
+		if(ref == null)
+		{
+			throw new Exception("Alignment to contig " + chrName + " which is not in the reference");
+		}
+
+		AlleleCounts counts = cov.get(chrName);
+		if(counts == null)
+		{
+			counts = new AlleleCounts(ref.length);
+			cov.put(chrName, counts);
+			indels.put(chrName, new IndelCounts(ref.length));
+			contigs.add(chrName);
+		}
+		IndelCounts contigIndels = indels.get(chrName);
+
+		byte[] read = readSeq.getBytes();
+		String qual = tokens[10];
+		boolean hasQual = !qual.equals("*");
+
+		// Which strand this read counts towards
+		int strand = (flag & REVERSE_FLAG) != 0 ? 2 : 1;
+
+		int refPos = Integer.parseInt(tokens[3]) - 1;
+		int queryPos = 0;
+
+		// The last reference position covered by the read, where mpileup would attach a following indel
+		int anchor = -1;
+		boolean anchorShown = false;
+
+		int n = cigar.length();
+		int lenSoFar = 0;
+		for(int i = 0; i<n; i++)
+		{
+			char c = cigar.charAt(i);
+			if(c >= '0' && c <= '9')
+			{
+				lenSoFar = lenSoFar * 10 + (c - '0');
+				continue;
+			}
+
+			// Aligned bases, which are only shown if their quality is high enough
+			if(CheckVariants.consumesReference(c) && CheckVariants.consumesQuery(c))
+			{
+				for(int j = 0; j<lenSoFar && refPos + j < ref.length; j++)
+				{
+					anchor = refPos + j;
+					anchorShown = !hasQual || qual.charAt(queryPos + j) - 33 >= minBaseQuality;
+					if(anchorShown)
+					{
+						int allele = MpileupReader.ALLELES[read[queryPos + j] & 0xff];
+						if(allele != -1)
+						{
+							count(counts, anchor, strand, allele);
+						}
+					}
+				}
+			}
+
+			// Insertion after the last reference base
+			else if(c == 'I')
+			{
+				if(anchor != -1 && anchorShown)
+				{
+					count(counts, anchor, strand, AlleleCounts.INSERTION);
+					addIndel(contigIndels, anchor, read, queryPos, Math.min(queryPos + lenSoFar, read.length));
+				}
+			}
+
+			// Deletion after the last reference base, where the deleted bases are shown as '*' or '#'
+			else if(c == 'D')
+			{
+				if(anchor != -1 && anchorShown)
+				{
+					count(counts, anchor, strand, AlleleCounts.DELETION);
+					addIndel(contigIndels, anchor, ref, refPos, Math.min(refPos + lenSoFar, ref.length));
+				}
+				for(int j = 0; j<lenSoFar && refPos + j < ref.length; j++)
+				{
+					count(counts, refPos + j, strand, AlleleCounts.INSERTION);
+				}
+				anchor = Math.min(refPos + lenSoFar, ref.length) - 1;
+				anchorShown = true;
+			}
+
+			// Skipped reference bases, which mpileup shows as '>' or '<'
+			else if(c == 'N')
+			{
+				for(int j = 0; j<lenSoFar && refPos + j < ref.length; j++)
+				{
+					count(counts, refPos + j, strand, 4);
+				}
+				anchor = Math.min(refPos + lenSoFar, ref.length) - 1;
+				anchorShown = true;
+			}
+
+			if(CheckVariants.consumesReference(c)) refPos += lenSoFar;
+			if(CheckVariants.consumesQuery(c)) queryPos += lenSoFar;
+			lenSoFar = 0;
+		}
+	}
+
+	/*
+	 * Adds one to an allele on both strands combined and on the given strand
+	 */
+	static void count(AlleleCounts counts, int pos, int strand, int allele)
+	{
+		counts.increment(pos, 0, allele);
+		counts.increment(pos, strand, allele);
+	}
+
+	/*
+	 * Adds an indel sequence taken from the range [start, end) of seq to the tally at a position
+	 */
+	static void addIndel(IndelCounts indels, int pos, byte[] seq, int start, int end)
+	{
+		if(end < start)
+		{
+			end = start;
+		}
+		indels.get(pos).add(IndelCounts.hash(seq, start, end), seq, start, end);
+	}
+}
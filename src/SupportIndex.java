@@ -0,0 +1,266 @@
+/*
+ * An index of the supporting samples of every record in a merged VCF, so records can be selected by their
+ * SUPP_VEC without parsing the text of the file again
+ * The index is kept next to the VCF in a binary file ending in .svi, which holds the byte offset of each record
+ * (or -1 if the VCF is compressed and has to be read from the start) and its SupportSet.  It is built the first
+ * time it is needed and rebuilt whenever the VCF's size or modification time changes.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SupportIndex
+{
+	static final String SUFFIX = ".svi";
+	static final byte[] MAGIC = "VVSUPP01".getBytes(StandardCharsets.US_ASCII);
+
+	// The number of samples in the SUPP_VEC of each record
+	int numSamples;
+
+	// The offset of each record's line, or -1 if they can only be found by counting lines
+	ArrayList<Long> offsets;
+	ArrayList<SupportSet> support;
+
+	SupportIndex()
+	{
+		offsets = new ArrayList<Long>();
+		support = new ArrayList<SupportSet>();
+	}
+
+	/*
+	 * Gets the index of a VCF, reading it from the sidecar file if it is up to date or else building it
+	 */
+	static SupportIndex load(String vcfFn) throws Exception
+	{
+		File vcf = new File(vcfFn);
+		File indexFile = new File(vcfFn + SUFFIX);
+		if(indexFile.exists())
+		{
+			SupportIndex index = read(indexFile, vcf.length(), vcf.lastModified());
+			if(index != null)
+			{
+				return index;
+			}
+		}
+
+		System.err.println("Indexing " + vcfFn);
+		SupportIndex index = build(vcfFn);
+		try
+		{
+			index.write(indexFile, vcf.length(), vcf.lastModified());
+		}
+		catch(Exception e)
+		{
+			// The index can still be used this time even if it cannot be saved
+			System.err.println("Could not save support index " + indexFile + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	/*
+	 * Reads an index file, returning null if it was made for a different version of the VCF
+	 */
+	static SupportIndex read(File indexFile, long size, long lastModified) throws Exception
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), CompressedFiles.BUFFER_SIZE));
+		byte[] magic = new byte[MAGIC.length];
+		if(input.readNBytes(magic, 0, magic.length) < MAGIC.length || !Arrays.equals(magic, MAGIC) || input.readLong() != size || input.readLong() != lastModified)
+		{
+			input.close();
+			return null;
+		}
+		SupportIndex index = new SupportIndex();
+		index.numSamples = input.readInt();
+		int numRecords = input.readInt();
+		for(int i = 0; i<numRecords; i++)
+		{
+			index.offsets.add(input.readLong());
+			index.support.add(SupportSet.read(input, index.numSamples));
+		}
+		input.close();
+		return index;
+	}
+
+	/*
+	 * Reads through a VCF once to get the offset and supporting samples of every record
+	 */
+	static SupportIndex build(String vcfFn) throws Exception
+	{
+		SupportIndex index = new SupportIndex();
+		boolean compressed = CompressedFiles.isCompressed(vcfFn);
+		InputStream input = CompressedFiles.open(vcfFn);
+		LineReader lines = new LineReader(input);
+		while(true)
+		{
+			long offset = lines.offset;
+			String line = lines.next();
+			if(line == null)
+			{
+				break;
+			}
+			if(line.length() == 0 || line.startsWith("#"))
+			{
+				continue;
+			}
+			String vector = new VcfEntry(line).getInfo("SUPP_VEC");
+			index.numSamples = Math.max(index.numSamples, vector.length());
+			index.offsets.add(compressed ? -1 : offset);
+			index.support.add(SupportSet.fromVector(vector));
+		}
+		input.close();
+		return index;
+	}
+
+	void write(File indexFile, long size, long lastModified) throws Exception
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), CompressedFiles.BUFFER_SIZE));
+		out.write(MAGIC);
+		out.writeLong(size);
+		out.writeLong(lastModified);
+		out.writeInt(numSamples);
+		out.writeInt(offsets.size());
+		for(int i = 0; i<offsets.size(); i++)
+		{
+			out.writeLong(offsets.get(i));
+			support.get(i).write(out);
+		}
+		out.close();
+	}
+
+	/*
+	 * A SUPP_VEC pattern of 0s, 1s, and '.' for samples which can go either way
+	 */
+	static class Pattern
+	{
+		// The samples which the pattern cares about, and which of those must be in the set
+		long[] mask, value;
+		int required;
+
+		Pattern(String pattern, int numSamples) throws Exception
+		{
+			if(pattern.length() != numSamples)
+			{
+				throw new Exception("Pattern " + pattern + " has " + pattern.length() + " samples but the VCF has " + numSamples);
+			}
+			mask = new long[(numSamples >> 6) + 1];
+			value = new long[mask.length];
+			for(int i = 0; i<pattern.length(); i++)
+			{
+				char c = pattern.charAt(i);
+				if(c == '0' || c == '1')
+				{
+					mask[i >> 6] |= 1L << i;
+				}
+				if(c == '1')
+				{
+					value[i >> 6] |= 1L << i;
+					required++;
+				}
+				else if(c != '0' && c != '.')
+				{
+					throw new Exception("Pattern " + pattern + " can only contain 0, 1, and .");
+				}
+			}
+		}
+
+		boolean matches(SupportSet set)
+		{
+			if(set.words != null)
+			{
+				for(int i = 0; i<mask.length; i++)
+				{
+					long word = i < set.words.length ? set.words[i] : 0;
+					if((word & mask[i]) != value[i])
+					{
+						return false;
+					}
+				}
+				return true;
+			}
+
+			// Every sample in a sparse set must be allowed, and they must cover all of the required ones
+			int found = 0;
+			for(int i = 0; i<set.size; i++)
+			{
+				int x = set.members[i];
+				long bit = 1L << x;
+				int idx = x >> 6;
+				if(idx >= mask.length || (mask[idx] & bit) == 0)
+				{
+					continue;
+				}
+				if((value[idx] & bit) == 0)
+				{
+					return false;
+				}
+				found++;
+			}
+			return found == required;
+		}
+	}
+
+	/*
+	 * Reads lines from a stream while keeping track of the byte offset of each one
+	 */
+	static class LineReader
+	{
+		InputStream input;
+		long offset;
+		byte[] line = new byte[1024];
+
+		LineReader(InputStream input)
+		{
+			this.input = input;
+		}
+
+		/*
+		 * Gets the next line without its line ending, or null at the end of the stream
+		 */
+		String next() throws Exception
+		{
+			int length = 0;
+			int b = input.read();
+			if(b == -1)
+			{
+				return null;
+			}
+			while(b != -1 && b != '\n')
+			{
+				offset++;
+				if(length == line.length)
+				{
+					line = Arrays.copyOf(line, 2 * length);
+				}
+				line[length++] = (byte)b;
+				b = input.read();
+			}
+			if(b == '\n')
+			{
+				offset++;
+			}
+			if(length > 0 && line[length - 1] == '\r')
+			{
+				length--;
+			}
+			return new String(line, 0, length);
+		}
+
+		/*
+		 * Skips ahead to a later offset
+		 */
+		void skipTo(long target) throws Exception
+		{
+			input.skipNBytes(target - offset);
+			offset = target;
+		}
+	}
+}
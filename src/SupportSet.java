@@ -0,0 +1,254 @@
+/*
+ * The set of samples which support a merged variant
+ * A variant found in only a few samples keeps their indices in a small sorted array, and once the array would
+ * take more space than a bitset over the whole cohort it switches to the bitset, so sets stay small for rare
+ * variants in large cohorts and unions of common ones are a word at a time.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.Arrays;
+
+public class SupportSet
+{
+	// The most samples kept in the sorted array when the size of the cohort is not known
+	static final int DEFAULT_SPARSE_LIMIT = 32;
+
+	// The most samples kept in the sorted array before switching to a bitset
+	int sparseLimit;
+
+	// The samples in increasing order while the set is sparse, or null once it uses the bitset
+	int[] members;
+
+	// One bit per sample once the set is dense
+	long[] words;
+
+	int size;
+
+	SupportSet()
+	{
+		sparseLimit = DEFAULT_SPARSE_LIMIT;
+		members = new int[4];
+	}
+
+	/*
+	 * Makes an empty set for a cohort of the given size, which switches to a bitset once that takes less space
+	 */
+	SupportSet(int numSamples)
+	{
+		sparseLimit = sparseLimit(numSamples);
+		members = new int[Math.min(4, sparseLimit)];
+	}
+
+	/*
+	 * The number of ints which take the same space as a bitset over the cohort
+	 */
+	static int sparseLimit(int numSamples)
+	{
+		return Math.max(1, 2 * ((numSamples + 63) >> 6));
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	boolean contains(int sample)
+	{
+		if(words != null)
+		{
+			int idx = sample >> 6;
+			return idx < words.length && (words[idx] & (1L << sample)) != 0;
+		}
+		return Arrays.binarySearch(members, 0, size, sample) >= 0;
+	}
+
+	void add(int sample)
+	{
+		if(words != null)
+		{
+			int idx = sample >> 6;
+			if(idx >= words.length)
+			{
+				words = Arrays.copyOf(words, Math.max(idx + 1, 2 * words.length));
+			}
+			if((words[idx] & (1L << sample)) == 0)
+			{
+				words[idx] |= 1L << sample;
+				size++;
+			}
+			return;
+		}
+
+		// Samples are usually added in increasing order, so check the end first
+		int pos = size > 0 && members[size - 1] < sample ? -size - 1 : Arrays.binarySearch(members, 0, size, sample);
+		if(pos >= 0)
+		{
+			return;
+		}
+		pos = -pos - 1;
+		if(size >= sparseLimit)
+		{
+			toDense();
+			add(sample);
+			return;
+		}
+		if(size == members.length)
+		{
+			members = Arrays.copyOf(members, Math.min(2 * members.length, sparseLimit));
+		}
+		System.arraycopy(members, pos, members, pos + 1, size - pos);
+		members[pos] = sample;
+		size++;
+	}
+
+	/*
+	 * Adds every sample in another set to this one
+	 */
+	void addAll(SupportSet other)
+	{
+		if(other.words == null)
+		{
+			for(int i = 0; i<other.size; i++)
+			{
+				add(other.members[i]);
+			}
+			return;
+		}
+		if(words == null)
+		{
+			toDense();
+		}
+		if(words.length < other.words.length)
+		{
+			words = Arrays.copyOf(words, other.words.length);
+		}
+		size = 0;
+		for(int i = 0; i<words.length; i++)
+		{
+			if(i < other.words.length)
+			{
+				words[i] |= other.words[i];
+			}
+			size += Long.bitCount(words[i]);
+		}
+	}
+
+	void toDense()
+	{
+		int maxSample = size == 0 ? 0 : members[size - 1];
+		words = new long[(maxSample >> 6) + 1];
+		for(int i = 0; i<size; i++)
+		{
+			words[members[i] >> 6] |= 1L << members[i];
+		}
+		members = null;
+	}
+
+	/*
+	 * Gets the smallest sample in the set which is at least from, or -1 if there are none
+	 */
+	int next(int from)
+	{
+		if(words != null)
+		{
+			int idx = from >> 6;
+			if(idx >= words.length)
+			{
+				return -1;
+			}
+			long word = words[idx] & (-1L << from);
+			while(true)
+			{
+				if(word != 0)
+				{
+					return (idx << 6) + Long.numberOfTrailingZeros(word);
+				}
+				if(++idx == words.length)
+				{
+					return -1;
+				}
+				word = words[idx];
+			}
+		}
+		int pos = Arrays.binarySearch(members, 0, size, from);
+		if(pos < 0)
+		{
+			pos = -pos - 1;
+		}
+		return pos < size ? members[pos] : -1;
+	}
+
+	/*
+	 * Marks the samples in the set with '1' in a vector which is otherwise all '0'
+	 */
+	void fill(char[] vector)
+	{
+		for(int x = next(0); x != -1; x = next(x + 1))
+		{
+			vector[x] = '1';
+		}
+	}
+
+	/*
+	 * Parses a SUPP_VEC string of 0s and 1s
+	 */
+	static SupportSet fromVector(String vector)
+	{
+		SupportSet res = new SupportSet(vector.length());
+		for(int i = vector.indexOf('1'); i != -1; i = vector.indexOf('1', i + 1))
+		{
+			res.add(i);
+		}
+		return res;
+	}
+
+	/*
+	 * Writes the set in a binary form which keeps sparse sets small
+	 */
+	void write(DataOutput out) throws Exception
+	{
+		out.writeBoolean(words != null);
+		if(words != null)
+		{
+			out.writeInt(words.length);
+			for(long word : words)
+			{
+				out.writeLong(word);
+			}
+		}
+		else
+		{
+			out.writeInt(size);
+			for(int i = 0; i<size; i++)
+			{
+				out.writeInt(members[i]);
+			}
+		}
+	}
+
+	static SupportSet read(DataInput in, int numSamples) throws Exception
+	{
+		SupportSet res = new SupportSet(numSamples);
+		if(in.readBoolean())
+		{
+			res.members = null;
+			res.words = new long[in.readInt()];
+			for(int i = 0; i<res.words.length; i++)
+			{
+				res.words[i] = in.readLong();
+				res.size += Long.bitCount(res.words[i]);
+			}
+		}
+		else
+		{
+			res.size = in.readInt();
+			res.members = new int[Math.max(res.size, 1)];
+			for(int i = 0; i<res.size; i++)
+			{
+				res.members[i] = in.readInt();
+			}
+		}
+		return res;
+	}
+}
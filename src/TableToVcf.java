@@ -2,9 +2,6 @@
  * Converts a post-filtering TSV to two separate VCFs - one with all variants and one with only consensus variants
  */
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Scanner;
@@ -62,7 +59,7 @@ public class TableToVcf
 	{
 		parseArgs(args);
 		
-		Scanner input = new Scanner(new FileInputStream(new File(tableFn)));
+		Scanner input = new Scanner(CompressedFiles.open(tableFn));
 		VariantTable variantTable = new VariantTable(input.nextLine());
 		while(input.hasNext())
 		{
@@ -70,8 +67,8 @@ public class TableToVcf
 		}
 		input.close();
 		
-		PrintWriter consensusOut = new PrintWriter(new File(consensusFn));
-		PrintWriter allOut = new PrintWriter(new File(allFn));
+		VcfWriter consensusOut = new VcfWriter(consensusFn);
+		VcfWriter allOut = new VcfWriter(allFn);
 		
 		// Print VCF headers
 		printVcfHeader(consensusOut);
@@ -89,9 +86,9 @@ public class TableToVcf
 	}
 	
 	/*
-	 * Prints a standard VCF header to a given PrintWriter
+	 * Prints a standard VCF header to a given writer
 	 */
-	static void printVcfHeader(PrintWriter out)
+	static void printVcfHeader(VcfWriter out) throws Exception
 	{
 		out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
 	}
@@ -146,10 +143,10 @@ public class TableToVcf
 		}
 		
 		/*
-		 * Prints the row in VCF format to the given PrintWriter
+		 * Prints the row in VCF format to the given writer
 		 * If the consensusOnly flag is true, don't print the variant if it's non-consensus
 		 */
-		void printRowVcf(int rowIndex, PrintWriter out, boolean consensusOnly)
+		void printRowVcf(int rowIndex, VcfWriter out, boolean consensusOnly) throws Exception
 		{
 			boolean inConsensus = getValue(rowIndex, "in_consensus").equalsIgnoreCase("true");
 			if(!inConsensus && consensusOnly)
@@ -164,7 +161,8 @@ public class TableToVcf
 			String filter = ".";
 			String qual = ".";
 			String info = ".";
-			out.printf("%s\t%d\t%s\t%s\t%s\t%s\t%s\t%s\n", chr, pos, id, ref, alt, qual, filter, info);
+			out.append(chr).append('\t').append(pos).append('\t').append(id).append('\t').append(ref).append('\t').append(alt)
+				.append('\t').append(qual).append('\t').append(filter).append('\t').append(info).newline();
 		}
 	}
 }
@@ -0,0 +1,149 @@
+/*
+ * The identity of a variant used for sorting and merging: its contig, position, and either the length of a deletion
+ * or the REF and ALT alleles of anything else
+ * Keys sort in the same order as the strings chrom_POS_REF_ALT (or chrom_POS_LENGTH for deletions) with the position
+ * zero-padded to eight digits, but are compared field by field without ever building those strings.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VariantKey implements Comparable<VariantKey>
+{
+	// Numbers given to contig names so keys on the same contig can be recognized without comparing strings
+	static ConcurrentHashMap<String, Integer> contigIds = new ConcurrentHashMap<String, Integer>();
+	static AtomicInteger nextContigId = new AtomicInteger();
+
+	// The widest position which the eight-digit padding keeps in numerical order
+	static final int MAX_PADDED_POS = 99999999;
+
+	String chrom;
+	int contig;
+	int pos;
+
+	// The number of deleted bases and the same number as text, or 0 and null if this is not a deletion
+	int deletionLength;
+	String deletionText;
+	String ref, alt;
+
+	int hash;
+
+	// The key as a string, only built for the rare comparisons which the fields cannot settle on their own
+	String legacy;
+
+	VariantKey(String chrom, int pos, String ref, String alt)
+	{
+		this.chrom = chrom;
+		contig = contigIds.computeIfAbsent(chrom, k -> nextContigId.getAndIncrement());
+		this.pos = pos;
+		if(ref.length() > alt.length())
+		{
+			deletionLength = ref.length() - alt.length();
+			deletionText = Integer.toString(deletionLength);
+		}
+		else
+		{
+			this.ref = ref;
+			this.alt = alt;
+		}
+		hash = 31 * (31 * contig + pos) + (deletionLength > 0 ? deletionLength : ref.hashCode() * 31 + alt.hashCode());
+	}
+
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	public boolean equals(Object o)
+	{
+		if(!(o instanceof VariantKey))
+		{
+			return false;
+		}
+		VariantKey k = (VariantKey)o;
+		if(hash != k.hash || contig != k.contig || pos != k.pos || deletionLength != k.deletionLength)
+		{
+			return false;
+		}
+		return deletionLength > 0 || (ref.equals(k.ref) && alt.equals(k.alt));
+	}
+
+	public int compareTo(VariantKey o)
+	{
+		if(pos < 0 || o.pos < 0 || pos > MAX_PADDED_POS || o.pos > MAX_PADDED_POS)
+		{
+			return toString().compareTo(o.toString());
+		}
+		if(contig != o.contig)
+		{
+			// The first difference is in the contig names unless one is the other followed by an underscore
+			int length = Math.min(chrom.length(), o.chrom.length());
+			for(int i = 0; i<length; i++)
+			{
+				char a = chrom.charAt(i), b = o.chrom.charAt(i);
+				if(a != b)
+				{
+					return a - b;
+				}
+			}
+			char a = chrom.length() == length ? '_' : chrom.charAt(length);
+			char b = o.chrom.length() == length ? '_' : o.chrom.charAt(length);
+			if(a != b)
+			{
+				return a - b;
+			}
+			return toString().compareTo(o.toString());
+		}
+		if(pos != o.pos)
+		{
+			return Integer.compare(pos, o.pos);
+		}
+
+		// Compare what comes after the position one character at a time
+		int length = suffixLength(), otherLength = o.suffixLength();
+		for(int i = 0; i<length && i<otherLength; i++)
+		{
+			char a = suffixChar(i), b = o.suffixChar(i);
+			if(a != b)
+			{
+				return a - b;
+			}
+		}
+		return length - otherLength;
+	}
+
+	int suffixLength()
+	{
+		if(deletionLength > 0)
+		{
+			return deletionText.length();
+		}
+		return ref.length() + 1 + alt.length();
+	}
+
+	char suffixChar(int i)
+	{
+		if(deletionLength > 0)
+		{
+			return deletionText.charAt(i);
+		}
+		if(i < ref.length())
+		{
+			return ref.charAt(i);
+		}
+		return i == ref.length() ? '_' : alt.charAt(i - ref.length() - 1);
+	}
+
+	/*
+	 * Gets the key as the string it is sorted like
+	 */
+	public String toString()
+	{
+		if(legacy == null)
+		{
+			String suffix = deletionLength > 0 ? deletionText : (ref + "_" + alt);
+			legacy = chrom + "_" + String.format("%08d", pos) + "_" + suffix;
+		}
+		return legacy;
+	}
+}
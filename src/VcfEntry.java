@@ -4,56 +4,162 @@
  * to do more parsing and error-checking for things like type and length.
  */
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashMap;
 
 public class VcfEntry implements Comparable<VcfEntry>
 {
 
+	// The line this entry was read from, which is shared rather than copied when the entry is split up
 	String originalLine;
-	String[] tabTokens;
+	
+	// The offset in the line where each column starts, plus one past the end of the last column
+	int[] starts;
+	int numColumns;
+	
+	// Columns which have been decoded or changed, filled in the first time each one is used
+	String[] columns;
+	
+	// Whether or not any column has been changed from the original line
+	boolean edited;
+	
+	// The INFO column split into fields, or null if it has not been parsed yet
+	Info info;
+	
+	// The POS column as a number, or -1 if it has not been parsed yet
+	int pos = -1;
+	
 	String oldId;
-	String key;
+	VariantKey key;
 	
-	HashSet<Integer> support;
+	SupportSet support;
 	
 	public VcfEntry(String line) throws Exception
 	{
-		support = new HashSet<Integer>();
+		support = new SupportSet();
 		originalLine = line;
-		tabTokens = line.split("\t");
-		if(tabTokens.length < 8)
+		
+		// Find the column boundaries in one pass without splitting the line
+		int count = 1;
+		for(int i = line.indexOf('\t'); i != -1; i = line.indexOf('\t', i + 1))
+		{
+			count++;
+		}
+		starts = new int[count + 1];
+		int idx = 0;
+		starts[idx++] = 0;
+		for(int i = line.indexOf('\t'); i != -1; i = line.indexOf('\t', i + 1))
+		{
+			starts[idx++] = i + 1;
+		}
+		starts[count] = line.length() + 1;
+		
+		// Empty columns at the end of the line are dropped, the same as splitting on tabs
+		numColumns = count;
+		while(numColumns > 0 && starts[numColumns] - starts[numColumns - 1] == 1)
+		{
+			numColumns--;
+		}
+		if(numColumns < 8)
 		{
 			throw new Exception("VCF line had too few entries: "
-					+ Arrays.toString(tabTokens));
+					+ Arrays.toString(line.split("\t")));
+		}
+	}
+	
+	/*
+	 * Makes a fresh copy of the line this entry was read from, which shares the line and column offsets with it
+	 */
+	VcfEntry copyOriginal()
+	{
+		return new VcfEntry(this);
+	}
+	
+	private VcfEntry(VcfEntry other)
+	{
+		support = new SupportSet();
+		originalLine = other.originalLine;
+		starts = other.starts;
+		numColumns = other.numColumns;
+	}
+	
+	/*
+	 * Makes a copy of this entry with all of its changes, which shares the line and any decoded columns with it
+	 * instead of joining and splitting the columns again
+	 */
+	VcfEntry copy()
+	{
+		VcfEntry res = new VcfEntry(this);
+		if(columns != null)
+		{
+			get(7);
+			res.columns = columns.clone();
+		}
+		res.edited = edited;
+		res.pos = pos;
+		return res;
+	}
+	
+	/*
+	 * Gets the value of a column, decoding it from the original line the first time it is needed
+	 */
+	String get(int column)
+	{
+		if(columns == null)
+		{
+			columns = new String[numColumns];
+		}
+		if(column == 7 && info != null && info.changed)
+		{
+			columns[7] = info.toString();
+			info.changed = false;
+		}
+		String res = columns[column];
+		if(res == null)
+		{
+			res = originalLine.substring(starts[column], starts[column + 1] - 1);
+			columns[column] = res;
 		}
-		setKey();
+		return res;
 	}
 	
-	void setKey() throws Exception
+	/*
+	 * Changes the value of a column, leaving the original line as it was
+	 */
+	void set(int column, String val)
 	{
-		if(getRef().length() > getAlt().length())
+		if(columns == null)
 		{
-			key = getChromosome() + "_" + String.format("%08d", getPos()) + "_" + (getRef().length() - getAlt().length());
+			columns = new String[numColumns];
 		}
-		else
+		columns[column] = val;
+		edited = true;
+		if(column == 7)
 		{
-			key = getChromosome() + "_" + String.format("%08d", getPos()) + "_" + getRef() + "_" + getAlt();
+			info = null;
 		}
 	}
 	
+	void setKey()
+	{
+		key = new VariantKey(getChromosome(), getPos(), getRef(), getAlt());
+	}
+	
 	/*
 	 * Reconstruct the VCF line by concatenating and tab-separating the fields
 	 */
 	public String toString()
 	{
-		StringBuilder sb = new StringBuilder("");
-		for(int i = 0; i<tabTokens.length; i++)
+		if(!edited)
+		{
+			return numColumns + 1 == starts.length ? originalLine : originalLine.substring(0, starts[numColumns] - 1);
+		}
+		StringBuilder sb = new StringBuilder(originalLine.length() + 32);
+		for(int i = 0; i<numColumns; i++)
 		{
-			sb.append(tabTokens[i]);
-			if(i < tabTokens.length - 1)
+			sb.append(get(i));
+			if(i < numColumns - 1)
 			{
 				sb.append("\t");
 			}
@@ -66,7 +172,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public String getChromosome()
 	{
-		return tabTokens[0];
+		return get(0);
 	}
 	
 	/*
@@ -74,15 +180,19 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public void setChromosome(String s)
 	{
-		tabTokens[0] = s;
+		set(0, s);
 	}
 	
 	/*
-	 * Get the POS field
+	 * Get the POS field, which is only parsed the first time
 	 */
-	public int getPos() throws Exception
+	public int getPos()
 	{
-		return Integer.parseInt(tabTokens[1]);
+		if(pos == -1)
+		{
+			pos = Integer.parseInt(get(1));
+		}
+		return pos;
 	}
 	
 	/*
@@ -90,7 +200,8 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public void setPos(int val)
 	{
-		tabTokens[1] = val+"";
+		set(1, val+"");
+		pos = val;
 	}
 	
 	/*
@@ -98,7 +209,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public String getId()
 	{
-		return tabTokens[2];
+		return get(2);
 	}
 	
 	/*
@@ -106,7 +217,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public void setId(String s)
 	{
-		tabTokens[2] = s;
+		set(2, s);
 	}
 	
 	/*
@@ -114,7 +225,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public String getRef()
 	{
-		return tabTokens[3];
+		return get(3);
 	}
 	
 	/*
@@ -122,7 +233,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public void setRef(String s)
 	{
-		tabTokens[3] = s;
+		set(3, s);
 	}
 	
 	/*
@@ -130,7 +241,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public String getAlt()
 	{
-		return tabTokens[4];
+		return get(4);
 	}
 	
 	/*
@@ -138,54 +249,28 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public void setAlt(String s)
 	{
-		tabTokens[4] = s;
+		set(4, s);
 	}
 	
 	/*
-	 * Set a particular VCF INFO field, adding the field if it doesn't already exist
+	 * Gets the INFO fields, parsing them the first time they are needed
 	 */
-	public void setInfo(String field, String val) throws Exception
+	Info info()
 	{
-		if(tabTokens[7].equals("."))
+		if(info == null)
 		{
-			tabTokens[7] = field + "=" + val;
-			return;
-		}
-		String[] infoFields = tabTokens[7].split(";");
-		for(String semitoken : infoFields)
-		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(field))
-			{
-				String updatedToken = key + "=" + val;
-				
-				// Special case if this is the first INFO field
-				if(tabTokens[7].startsWith(semitoken))
-				{
-					tabTokens[7] = tabTokens[7].replaceFirst(Pattern.quote(semitoken), Matcher.quoteReplacement(updatedToken));
-				}
-				else
-				{
-					tabTokens[7] = tabTokens[7].replace(";" + semitoken, ";" + updatedToken);
-				}
-				return;
-			}
-		}
-		
-		// Field not found, so add it!
-		if(tabTokens[7].endsWith(";"))
-		{
-			tabTokens[7] += field + "=" + val;
-		}
-		else
-		{
-			tabTokens[7] += ";" + field + "=" + val;
+			info = new Info(get(7));
 		}
+		return info;
+	}
+	
+	/*
+	 * Set a particular VCF INFO field, adding the field if it doesn't already exist
+	 */
+	public void setInfo(String field, String val) throws Exception
+	{
+		info().set(field, val);
+		edited = true;
 	}
 	
 	/*
@@ -193,22 +278,8 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public String getInfo(String field) throws Exception
 	{
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
-		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(field))
-			{
-				return semitoken.substring(1 + equalIndex);
-			}
-		}
-		return "";
+		int idx = info().indexOf(field);
+		return idx == -1 ? "" : info.values.get(idx);
 	}
 	
 	/*
@@ -216,22 +287,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public boolean hasInfoField(String fieldName)
 	{
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
-		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(fieldName))
-			{
-				return true;
-			}
-		}
-		return false;
+		return info().indexOf(fieldName) != -1;
 	}
 	
 	static int countNs(String s)
@@ -259,32 +315,134 @@ public class VcfEntry implements Comparable<VcfEntry>
 				setAlt(v.getAlt());
 			}
 		}
-		for(int sample: v.support)
-		{
-			support.add(sample);
-		}
+		support.addAll(v.support);
 		
-		String[] infoFields = v.tabTokens[7].split(";");
-		for(String semitoken : infoFields)
+		Info otherInfo = v.info();
+		for(int i = 0; i<otherInfo.keys.size(); i++)
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			String val = semitoken.substring(1 + equalIndex);
-			
-			if(!hasInfoField(key))
+			String key = otherInfo.keys.get(i);
+			String val = otherInfo.values.get(i);
+			if(val != null && !hasInfoField(key))
 			{
 				setInfo(key, val);
 			}
 		}
 	}
 
+	// The key is only built when entries are first compared, unless it was set explicitly
 	public int compareTo(VcfEntry o)
 	{
+		if(key == null)
+		{
+			setKey();
+		}
+		if(o.key == null)
+		{
+			o.setKey();
+		}
 		return key.compareTo(o.key);
 	}
 	
+	/*
+	 * The fields of an INFO column in their original order, which are changed in place and only
+	 * joined back into a string when the line is output
+	 * Fields without an '=' (including empty ones) are kept as keys with null values so the column
+	 * comes back out exactly as it went in.
+	 */
+	static class Info
+	{
+		ArrayList<String> keys;
+		ArrayList<String> values;
+		
+		// The first field with each key which has a value
+		HashMap<String, Integer> index;
+		
+		// Whether or not any field has changed since the column was last output
+		boolean changed;
+		
+		Info(String column)
+		{
+			keys = new ArrayList<String>();
+			values = new ArrayList<String>();
+			index = new HashMap<String, Integer>();
+			int start = 0;
+			while(true)
+			{
+				int end = column.indexOf(';', start);
+				if(end == -1)
+				{
+					end = column.length();
+				}
+				int equalIndex = column.indexOf('=', start);
+				if(equalIndex == -1 || equalIndex > end)
+				{
+					keys.add(column.substring(start, end));
+					values.add(null);
+				}
+				else
+				{
+					add(column.substring(start, equalIndex).intern(), column.substring(equalIndex + 1, end));
+				}
+				if(end == column.length())
+				{
+					break;
+				}
+				start = end + 1;
+			}
+		}
+		
+		void add(String key, String val)
+		{
+			index.putIfAbsent(key, keys.size());
+			keys.add(key);
+			values.add(val);
+		}
+		
+		int indexOf(String key)
+		{
+			Integer res = index.get(key);
+			return res == null ? -1 : res;
+		}
+		
+		/*
+		 * Changes the value of a field, or adds it to the end if it is not there yet
+		 */
+		void set(String key, String val)
+		{
+			changed = true;
+			int idx = indexOf(key);
+			if(idx != -1)
+			{
+				values.set(idx, val);
+				return;
+			}
+			
+			// A missing INFO column is replaced, and a trailing semicolon is filled in rather than adding another
+			int last = keys.size() - 1;
+			if(values.get(last) == null && (keys.get(last).equals(".") && last == 0 || keys.get(last).length() == 0 && last > 0))
+			{
+				keys.remove(last);
+				values.remove(last);
+			}
+			add(key.intern(), val);
+		}
+		
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i<keys.size(); i++)
+			{
+				if(i > 0)
+				{
+					sb.append(';');
+				}
+				sb.append(keys.get(i));
+				if(values.get(i) != null)
+				{
+					sb.append('=').append(values.get(i));
+				}
+			}
+			return sb.toString();
+		}
+	}
 }
@@ -0,0 +1,245 @@
+/*
+ * Writes VCF lines by appending text and numbers straight into a reusable byte buffer
+ * The buffer is flushed to the file's channel in large blocks, and numbers are formatted by hand,
+ * producing the same text as String.format with %d and %.6f, without creating any objects per record.
+ * Files whose names end in .gz are BGZF-compressed.
+ */
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+public class VcfWriter
+{
+	// How much is buffered before writing to the file
+	static final int BUFFER_SIZE = 1 << 16;
+
+	// The number of digits after the decimal point for allele frequencies, as in %.6f
+	static final int FREQUENCY_DIGITS = 6;
+
+	// Fractions with larger denominators than this are formatted through String.format instead of exactly
+	static final long MAX_EXACT_DENOMINATOR = 1L << 24;
+
+	static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
+	OutputStream stream;
+	WritableByteChannel channel;
+
+	byte[] buf;
+	ByteBuffer wrapped;
+
+	// The number of bytes currently in the buffer
+	int size;
+
+	// Holds the digits of a number while it is written, which come out in reverse order
+	byte[] digits = new byte[20];
+
+	VcfWriter(String fn) throws Exception
+	{
+		if(CompressedFiles.compressedName(fn))
+		{
+			stream = CompressedFiles.create(fn);
+			channel = Channels.newChannel(stream);
+		}
+		else
+		{
+			FileOutputStream fileStream = new FileOutputStream(fn);
+			stream = fileStream;
+			channel = fileStream.getChannel();
+		}
+		buf = new byte[BUFFER_SIZE];
+		wrapped = ByteBuffer.wrap(buf);
+	}
+
+	/*
+	 * Makes a writer which only builds up text in memory, to be collected with take()
+	 */
+	VcfWriter()
+	{
+		buf = new byte[256];
+		wrapped = ByteBuffer.wrap(buf);
+	}
+
+	/*
+	 * Makes sure there is room for a given number of bytes in the buffer, flushing it if needed
+	 */
+	void reserve(int length) throws Exception
+	{
+		if(size + length > buf.length)
+		{
+			flush();
+			if(size + length > buf.length)
+			{
+				byte[] bigger = new byte[Math.max(size + length, 2 * buf.length)];
+				System.arraycopy(buf, 0, bigger, 0, size);
+				buf = bigger;
+				wrapped = ByteBuffer.wrap(buf);
+			}
+		}
+	}
+
+	VcfWriter append(String s) throws Exception
+	{
+		int n = s.length();
+		reserve(n);
+		for(int i = 0; i<n; i++)
+		{
+			char c = s.charAt(i);
+			if(c >= 0x80)
+			{
+				// Leave anything which is not ASCII to the default charset, as PrintWriter does
+				return append(s.substring(i).getBytes());
+			}
+			buf[size++] = (byte)c;
+		}
+		return this;
+	}
+
+	VcfWriter append(byte[] bytes) throws Exception
+	{
+		reserve(bytes.length);
+		System.arraycopy(bytes, 0, buf, size, bytes.length);
+		size += bytes.length;
+		return this;
+	}
+
+	VcfWriter append(char c) throws Exception
+	{
+		if(c >= 0x80)
+		{
+			return append(String.valueOf(c));
+		}
+		reserve(1);
+		buf[size++] = (byte)c;
+		return this;
+	}
+
+	VcfWriter append(long x) throws Exception
+	{
+		reserve(20);
+		if(x < 0)
+		{
+			if(x == Long.MIN_VALUE)
+			{
+				return append(Long.toString(x));
+			}
+			buf[size++] = '-';
+			x = -x;
+		}
+		int n = 0;
+		do
+		{
+			digits[n++] = (byte)('0' + x % 10);
+			x /= 10;
+		}
+		while(x > 0);
+		while(n > 0)
+		{
+			buf[size++] = digits[--n];
+		}
+		return this;
+	}
+
+	/*
+	 * Appends a list of numbers separated by commas, the same as %d,%d,...
+	 */
+	VcfWriter appendList(int a, int b, int c, int d) throws Exception
+	{
+		return append(a).append(',').append(b).append(',').append(c).append(',').append(d);
+	}
+
+	/*
+	 * Appends the fraction num/den with a fixed number of decimal places, rounding half up
+	 * For fractions between 0 and 1 with small denominators, the closest double never falls on the other
+	 * side of a rounding boundary, so this gives the same text as String.format("%.6f", 1.0 * num / den).
+	 */
+	VcfWriter appendFraction(long num, long den, int places) throws Exception
+	{
+		if(den <= 0 || num < 0 || num > den || den > MAX_EXACT_DENOMINATOR)
+		{
+			return append(String.format("%." + places + "f", 1.0 * num / den));
+		}
+		long scale = 1;
+		for(int i = 0; i<places; i++)
+		{
+			scale *= 10;
+		}
+
+		// Round num/den to a whole number of 10^-places units
+		long units = (2 * num * scale + den) / (2 * den);
+		append(units / scale);
+		if(places > 0)
+		{
+			reserve(places + 1);
+			buf[size++] = '.';
+			long rest = units % scale;
+			for(int i = places - 1; i>=0; i--)
+			{
+				buf[size + i] = (byte)('0' + rest % 10);
+				rest /= 10;
+			}
+			size += places;
+		}
+		return this;
+	}
+
+	/*
+	 * Appends an allele frequency the way the VCF INFO fields show it
+	 */
+	VcfWriter appendFrequency(long num, long den) throws Exception
+	{
+		return appendFraction(num, den, FREQUENCY_DIGITS);
+	}
+
+	/*
+	 * Ends the current line with a newline character
+	 */
+	VcfWriter newline() throws Exception
+	{
+		return append('\n');
+	}
+
+	/*
+	 * Appends a whole line ending in the system line separator, as PrintWriter.println does
+	 */
+	VcfWriter println(String line) throws Exception
+	{
+		return append(line).append(LINE_SEPARATOR);
+	}
+
+	/*
+	 * Gets the current contents of the buffer as a String and then empties it, for building up a single value
+	 */
+	String take()
+	{
+		String res = new String(buf, 0, size);
+		size = 0;
+		return res;
+	}
+
+	void flush() throws Exception
+	{
+		if(channel == null)
+		{
+			return;
+		}
+		wrapped.clear();
+		wrapped.limit(size);
+		while(wrapped.hasRemaining())
+		{
+			channel.write(wrapped);
+		}
+		size = 0;
+	}
+
+	void close() throws Exception
+	{
+		if(channel != null)
+		{
+			flush();
+			stream.close();
+		}
+	}
+}